@@ -0,0 +1,21 @@
+package build.pluto.buildgit.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.eclipse.jgit.util.FileUtils;
+
+import build.pluto.buildgit.util.RepositoryPool;
+
+class BenchmarkDirectories {
+
+  static File create(String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+
+  static void delete(File directory) throws IOException {
+    RepositoryPool.getInstance().closeAll();
+    FileUtils.delete(directory, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING | FileUtils.RETRY);
+  }
+}
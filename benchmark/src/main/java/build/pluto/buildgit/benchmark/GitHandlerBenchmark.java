@@ -0,0 +1,97 @@
+package build.pluto.buildgit.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.bound.BranchBound;
+import build.pluto.buildgit.bound.TagBound;
+import build.pluto.buildgit.bound.UpdateBound;
+import build.pluto.buildgit.dependency.GitRemoteRequirement;
+import build.pluto.buildgit.util.GitHandler;
+
+/**
+ * Benchmarks the operations that run on every build of an up to date
+ * repository: listing the files, resolving the bound and checking the
+ * consistency with the remote.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GitHandlerBenchmark {
+
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"3"})
+  public int depth;
+
+  @Param({"100"})
+  public int commits;
+
+  @Param({"10", "1000"})
+  public int refs;
+
+  private File root;
+  private SyntheticRepository remote;
+  private File clone;
+  private UpdateBound branchBound;
+  private UpdateBound tagBound;
+  private GitRemoteRequirement requirement;
+
+  @Setup
+  public void setup() throws IOException, GitAPIException, GitException {
+    root = BenchmarkDirectories.create("git-handler-benchmark");
+    remote = new SyntheticRepository(new File(root, "remote"), files, depth, commits, refs / 2, refs / 2);
+    clone = new File(root, "clone");
+    GitHandler.cloneRepository(new GitInput.Builder(clone, remote.url).build());
+    branchBound = new BranchBound(remote.url, "branch0");
+    tagBound = new TagBound(remote.url, "tag0");
+    requirement = new GitRemoteRequirement(clone, new BranchBound(remote.url, "master"), remote.url, 0, new File(root, "requirement.time"));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    BenchmarkDirectories.delete(root);
+  }
+
+  @Benchmark
+  public List<File> getNotIgnoredFilesOfRepo() throws GitException {
+    return GitHandler.getNotIgnoredFilesOfRepo(clone);
+  }
+
+  @Benchmark
+  public String getHashOfBranchBound() {
+    return GitHandler.getHashOfBound(remote.url, branchBound);
+  }
+
+  @Benchmark
+  public String getHashOfTagBound() {
+    return GitHandler.getHashOfBound(remote.url, tagBound);
+  }
+
+  @Benchmark
+  public boolean isConsistentWithRemote() {
+    return requirement.isConsistentWithRemote();
+  }
+}
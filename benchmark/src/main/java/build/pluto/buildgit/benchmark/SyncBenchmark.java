@@ -0,0 +1,85 @@
+package build.pluto.buildgit.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.util.GitHandler;
+
+/**
+ * Benchmarks a fresh clone and a pull of one new commit. Both are measured
+ * per invocation, since the setup of every invocation changes the state the
+ * operation works on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class SyncBenchmark {
+
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"3"})
+  public int depth;
+
+  @Param({"100"})
+  public int commits;
+
+  @Param({"10"})
+  public int refs;
+
+  private File root;
+  private SyntheticRepository remote;
+  private GitInput cloneInput;
+  private GitInput pullInput;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException, GitAPIException, GitException {
+    root = BenchmarkDirectories.create("sync-benchmark");
+    remote = new SyntheticRepository(new File(root, "remote"), files, depth, commits, refs / 2, refs / 2);
+    cloneInput = new GitInput.Builder(new File(root, "clone"), remote.url).build();
+    pullInput = new GitInput.Builder(new File(root, "pull"), remote.url).build();
+    GitHandler.cloneRepository(pullInput);
+  }
+
+  @Setup(Level.Invocation)
+  public void prepareInvocation() throws IOException, GitAPIException {
+    BenchmarkDirectories.delete(cloneInput.directory);
+    remote.commitChange();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    BenchmarkDirectories.delete(root);
+  }
+
+  @Benchmark
+  public void cloneRepository() throws GitException {
+    GitHandler.cloneRepository(cloneInput);
+  }
+
+  @Benchmark
+  public void pull() throws GitException {
+    GitHandler.pull(pullInput);
+  }
+}
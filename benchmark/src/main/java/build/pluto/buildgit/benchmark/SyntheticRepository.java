@@ -0,0 +1,103 @@
+package build.pluto.buildgit.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Generates a repository with a given number of files, directory depth,
+ * commits, branches and tags. The generated content only depends on the
+ * parameters, so repeated runs benchmark the same repository.
+ */
+public class SyntheticRepository {
+
+  private static final int FILES_PER_DIRECTORY = 16;
+
+  public final File directory;
+  public final String url;
+
+  private final int files;
+  private final int depth;
+  private final Random random = new Random(42);
+  private final List<RevCommit> history = new ArrayList<>();
+  private int nextChange = 0;
+
+  /**
+   * @param files how many files the repository contains.
+   * @param depth how deep the files are nested in directories.
+   * @param commits how many commits the history of master has, at least 1.
+   * @param branches how many branches besides master point into the history.
+   * @param tags how many tags point into the history.
+   */
+  public SyntheticRepository(File directory, int files, int depth, int commits, int branches, int tags) throws IOException, GitAPIException {
+    this.directory = directory;
+    this.url = directory.toURI().toString();
+    this.files = files;
+    this.depth = depth;
+
+    FileUtils.delete(directory, FileUtils.RECURSIVE | FileUtils.SKIP_MISSING);
+    try (Git git = Git.init().setDirectory(directory).call()) {
+      for (int i = 0; i < files; i++)
+        write(i, "file " + i + "\n");
+      git.add().addFilepattern(".").call();
+      history.add(git.commit().setMessage("initial commit").call());
+      for (int i = 1; i < commits; i++)
+        history.add(commitChange(git));
+      for (int i = 0; i < branches; i++)
+        git.branchCreate().setName("branch" + i).setStartPoint(randomCommit()).call();
+      for (int i = 0; i < tags; i++)
+        git.tag().setName("tag" + i).setObjectId(randomCommit()).call();
+    }
+  }
+
+  /**
+   * Changes one file and commits the change on the current branch.
+   */
+  public RevCommit commitChange() throws IOException, GitAPIException {
+    try (Git git = Git.open(directory)) {
+      RevCommit commit = commitChange(git);
+      history.add(commit);
+      return commit;
+    }
+  }
+
+  private RevCommit commitChange(Git git) throws IOException, GitAPIException {
+    int file = random.nextInt(files);
+    write(file, "change " + nextChange++ + " of file " + file + "\n");
+    git.add().addFilepattern(pathOf(file)).call();
+    return git.commit().setMessage("change " + nextChange).call();
+  }
+
+  private RevCommit randomCommit() {
+    return history.get(random.nextInt(history.size()));
+  }
+
+  private void write(int file, String content) throws IOException {
+    File f = new File(directory, pathOf(file));
+    FileUtils.mkdirs(f.getParentFile(), true);
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Distributes the files over a directory tree of the configured depth with
+   * {@value #FILES_PER_DIRECTORY} entries per directory.
+   */
+  private String pathOf(int file) {
+    StringBuilder path = new StringBuilder();
+    int rest = file / FILES_PER_DIRECTORY;
+    for (int level = 0; level < depth; level++) {
+      path.append("dir").append(rest % FILES_PER_DIRECTORY).append('/');
+      rest /= FILES_PER_DIRECTORY;
+    }
+    return path.append("file").append(file).append(".txt").toString();
+  }
+}
@@ -7,10 +7,12 @@ import java.util.List;
 
 import build.pluto.buildgit.bound.BranchBound;
 import build.pluto.buildgit.bound.UpdateBound;
+import build.pluto.buildgit.stamp.GitTreeStamper;
+import build.pluto.buildgit.util.RemoteOperationPolicy;
 import build.pluto.dependency.RemoteRequirement;
 
 public class GitInput implements Serializable {
-    private static final long serialVersionUID = 1115081253158794260L;
+    private static final long serialVersionUID = 4110557936445852251L;
 
     public final File directory;
     public final String url;
@@ -24,6 +26,12 @@ public class GitInput implements Serializable {
     public final UpdateBound bound;
     public final long consistencyCheckInterval;
     public final boolean allowLocalChanges;
+    public final boolean stampTree;
+    public final boolean fetchBoundOnly;
+    public final List<String> includePaths;
+    public final List<String> excludePaths;
+    public final File mirrorDirectory;
+    public final RemoteOperationPolicy remoteOperationPolicy;
 
     private GitInput(Builder builder) {
         this.directory = builder.directory;
@@ -37,6 +45,12 @@ public class GitInput implements Serializable {
         this.bound = builder.bound;
         this.consistencyCheckInterval = builder.consistencyCheckInterval;
         this.allowLocalChanges = builder.allowLocalChanges;
+        this.stampTree = builder.stampTree;
+        this.fetchBoundOnly = builder.fetchBoundOnly;
+        this.includePaths = builder.includePaths;
+        this.excludePaths = builder.excludePaths;
+        this.mirrorDirectory = builder.mirrorDirectory;
+        this.remoteOperationPolicy = RemoteOperationPolicy.orDefault(builder.remoteOperationPolicy);
     }
 
     public static class Builder {
@@ -52,6 +66,12 @@ public class GitInput implements Serializable {
         private UpdateBound bound = null;
         private long consistencyCheckInterval = -1L;
         private boolean allowLocalChanges = false;
+        private boolean stampTree = false;
+        private boolean fetchBoundOnly = false;
+        private List<String> includePaths = new ArrayList<>();
+        private List<String> excludePaths = new ArrayList<>();
+        private File mirrorDirectory = null;
+        private RemoteOperationPolicy remoteOperationPolicy = null;
 
         /**
          * @param directory in which the repository gets cloned into.
@@ -160,6 +180,88 @@ public class GitInput implements Serializable {
 			return this;
 		}
 
+        /**
+         * @param stampTree true if the repository gets provided as a single
+         * output stamped by its HEAD commit and tree instead of providing
+         * every file. Consumers require the paths they depend on with a
+         * {@link GitTreeStamper}. The default is false.
+         */
+        public Builder setStampTree(boolean stampTree) {
+            this.stampTree = stampTree;
+            return this;
+        }
+
+        /**
+         * @param fetchBoundOnly true if clones and pulls only fetch the branch
+         * or tag of the bound and the branches to clone instead of all refs of
+         * the remote. Pulls then merge the bound instead of the HEAD of the
+         * remote. The default is false.
+         */
+        public Builder setFetchBoundOnly(boolean fetchBoundOnly) {
+            this.fetchBoundOnly = fetchBoundOnly;
+            return this;
+        }
+
+        /**
+         * Restricts the files that get provided to the given path and the
+         * files below it. If no include path is added, all files get provided.
+         *
+         * @param path relative to the root of the repository, using / as
+         * separator.
+         */
+        public Builder addIncludePath(String path) {
+            String normalized = normalizePath(path);
+            if (!normalized.isEmpty() && !this.includePaths.contains(normalized))
+                this.includePaths.add(normalized);
+            return this;
+        }
+
+        /**
+         * Excludes the given path and the files below it from the files that
+         * get provided.
+         *
+         * @param path relative to the root of the repository, using / as
+         * separator.
+         */
+        public Builder addExcludePath(String path) {
+            String normalized = normalizePath(path);
+            if (!normalized.isEmpty() && !this.excludePaths.contains(normalized))
+                this.excludePaths.add(normalized);
+            return this;
+        }
+
+        /**
+         * @param mirrorDirectory directory that holds bare mirrors of the
+         * remote repositories, shared by all inputs with the same url. Clones
+         * and pulls fetch into the mirror and the working clone uses its
+         * objects as alternates. The default is null, which fetches directly
+         * from the remote.
+         */
+        public Builder setMirrorDirectory(File mirrorDirectory) {
+            this.mirrorDirectory = mirrorDirectory;
+            return this;
+        }
+
+        /**
+         * @param remoteOperationPolicy the timeouts, deadline and retries of
+         * the operations that contact the remote. The default is
+         * {@link RemoteOperationPolicy#getDefault()} at the time the input is
+         * built.
+         */
+        public Builder setRemoteOperationPolicy(RemoteOperationPolicy remoteOperationPolicy) {
+            this.remoteOperationPolicy = remoteOperationPolicy;
+            return this;
+        }
+
+        private static String normalizePath(String path) {
+            String normalized = path.replace('\\', '/');
+            while (normalized.startsWith("/"))
+                normalized = normalized.substring(1);
+            while (normalized.endsWith("/"))
+                normalized = normalized.substring(0, normalized.length() - 1);
+            return normalized;
+        }
+
         public GitInput build() {
             return new GitInput(this);
         }
@@ -1,22 +1,36 @@
 package build.pluto.buildgit;
 
 import java.io.File;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
 
 import build.pluto.builder.Builder;
 import build.pluto.builder.factory.BuilderFactory;
 import build.pluto.builder.factory.BuilderFactoryFactory;
+import build.pluto.buildgit.bound.CommitHashBound;
 import build.pluto.buildgit.dependency.GitRemoteRequirement;
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.stamp.GitBlobStamper;
+import build.pluto.buildgit.stamp.GitTreeStamper;
 import build.pluto.buildgit.util.FileUtil;
 import build.pluto.buildgit.util.GitHandler;
-import build.pluto.output.None;
-import build.pluto.stamp.FileHashStamper;
+import build.pluto.buildgit.util.GitHandler.PathVisitor;
+import build.pluto.buildgit.util.GitPrefetchService;
+import build.pluto.buildgit.util.GitRemoteSession;
+import build.pluto.buildgit.util.LocalRepositoryState;
+import build.pluto.buildgit.util.PathFilters;
 import build.pluto.stamp.FileIgnoreStamper;
 import build.pluto.stamp.Stamper;
 
-public class GitRemoteSynchronizer extends Builder<GitInput, None> {
+public class GitRemoteSynchronizer extends Builder<GitInput, GitSyncOutput> {
 
-  public static BuilderFactory<GitInput, None, GitRemoteSynchronizer> factory = BuilderFactoryFactory.of(GitRemoteSynchronizer.class, GitInput.class);
+  public static BuilderFactory<GitInput, GitSyncOutput, GitRemoteSynchronizer> factory = BuilderFactoryFactory.of(GitRemoteSynchronizer.class, GitInput.class);
 
   public GitRemoteSynchronizer(GitInput input) {
     super(input);
@@ -33,37 +47,133 @@ public class GitRemoteSynchronizer extends Builder<GitInput, None> {
   }
 
   @Override
-  protected None build(GitInput input) throws Throwable {
+  protected GitSyncOutput build(GitInput input) throws Throwable {
+    boolean isClone = FileUtil.isDirectoryEmpty(input.directory);
+    String previousCommit = isClone ? null : LocalRepositoryState.read(input.directory).getHeadHash();
+    try {
+      synchronize(input);
+    } finally {
+      if (isClone)
+        requireOther(requirementOf(input));
+    }
+
+    Map<File, Stamper> outputs = outputsOf(input);
+    for (Map.Entry<File, Stamper> output : outputs.entrySet())
+      this.provide(output.getKey(), output.getValue());
+    GitMetrics.filesProvided(input.directory, outputs.size());
+
+    return syncOutputOf(input, previousCommit);
+  }
+
+  /**
+   * Clones the repository of input or, if it was cloned before, checks out
+   * the bound and pulls if the remote is accessible. Nothing is fetched if
+   * HEAD already is at the hash the remote advertises for the bound, or at
+   * least exists locally for a commit hash bound. If the
+   * {@link GitPrefetchService} is running and fetched the repository
+   * recently, its refs are merged without contacting the remote.
+   */
+  public static void synchronize(GitInput input) throws GitException {
     boolean isRepo = GitHandler.isRepo((input.directory));
     boolean isDirEmpty = FileUtil.isDirectoryEmpty(input.directory);
     if (!isDirEmpty && !isRepo)
       throw new IllegalArgumentException(input.directory + " contains other data");
 
-    if (!isDirEmpty && isRepo) {
-      GitHandler.checkout(input.directory, input.bound.getBound());
-      if (GitHandler.isUrlAccessible(input.url))
-        GitHandler.pull(input);
-    } else {
-      try {
+    GitPrefetchService prefetchService = GitPrefetchService.getInstance();
+    // locked before registering, so a round does not forget the directory
+    // before it is cloned
+    prefetchService.lock(input.directory);
+    prefetchService.register(input);
+    try {
+      if (!isDirEmpty && isRepo) {
+        if (input.bound instanceof CommitHashBound && GitHandler.hasCommit(input.directory, input.bound.getBoundHash())) {
+          if (!GitHandler.isAtBound(input.directory, input.bound, input.bound.getBoundHash()))
+            GitHandler.checkout(input.directory, input.bound.getBound());
+          return;
+        }
+        Map<String, Ref> prefetchedRefs = prefetchService.getPrefetchedRefs(input.directory, input.url);
+        if (prefetchedRefs != null) {
+          String boundHash = GitHandler.getHashOfBound(prefetchedRefs, input.bound);
+          if (boundHash != null && GitHandler.isAtBound(input.directory, input.bound, boundHash))
+            return;
+          GitHandler.checkout(input.directory, input.bound.getBound());
+          if (GitHandler.mergeFetched(input, prefetchedRefs))
+            return;
+        }
+        // one connection serves the accessibility check, the bound and the fetch
+        GitRemoteSession session = GitRemoteSession.tryOpen(input.directory, input.url, input.remoteOperationPolicy);
+        if (session == null) {
+          GitHandler.checkout(input.directory, input.bound.getBound());
+          return;
+        }
+        try {
+          String boundHash = session.getHashOfBound(input.bound);
+          if (boundHash != null && GitHandler.isAtBound(input.directory, input.bound, boundHash))
+            return;
+          GitHandler.checkout(input.directory, input.bound.getBound());
+          GitHandler.pull(input, session);
+        } finally {
+          session.close();
+        }
+      } else {
         GitHandler.cloneRepository(input);
-        GitHandler.resetRepoToCommit(input.directory, input.bound.getBoundHash());
-      } finally {
-        File tsPersistentPath = new File(input.directory, ".git/git.dep.time");
-        GitRemoteRequirement gitRequirement = new GitRemoteRequirement(input.directory,
-            input.bound,
-            input.url,
-            input.consistencyCheckInterval,
-            tsPersistentPath);
-        requireOther(gitRequirement);
+        String boundHash = input.bound.getBoundHash();
+        if (boundHash == null || !boundHash.equals(LocalRepositoryState.read(input.directory).getHeadHash()))
+          GitHandler.resetRepoToCommit(input.directory, boundHash);
       }
+    } finally {
+      prefetchService.unlock(input.directory);
     }
+  }
+
+  /**
+   * @param previousCommit the hash of HEAD before the synchronization of
+   * input, null if it cloned the repository.
+   * @return the paths the synchronization changed below the include paths of
+   * input.
+   */
+  public static GitSyncOutput syncOutputOf(GitInput input, String previousCommit) throws GitException {
+    String commit = LocalRepositoryState.read(input.directory).getHeadHash();
+    if (previousCommit == null || commit == null)
+      return new GitSyncOutput(null, commit, Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList());
+    if (previousCommit.equals(commit))
+      return GitSyncOutput.of(previousCommit, commit, Collections.<DiffEntry>emptyList());
+    TreeFilter filter = PathFilters.create(input.includePaths, input.excludePaths);
+    return GitSyncOutput.of(previousCommit, commit, GitHandler.getChangedPaths(input.directory, previousCommit, commit, filter));
+  }
 
-    // provide files
-    Stamper stamper = input.allowLocalChanges ? FileIgnoreStamper.instance : FileHashStamper.instance;
-    List<File> outputFiles = GitHandler.getNotIgnoredFilesOfRepo(input.directory);
-    for (File f : outputFiles)
-      this.provide(f, stamper);
+  public static GitRemoteRequirement requirementOf(GitInput input) {
+    File tsPersistentPath = new File(input.directory, ".git/git.dep.time");
+    return new GitRemoteRequirement(input.directory,
+        input.bound,
+        input.url,
+        input.consistencyCheckInterval,
+        tsPersistentPath,
+        input.remoteOperationPolicy);
+  }
 
-    return None.val;
+  /**
+   * @return the files or directories a synchronization of input provides
+   * and the stampers they get provided with.
+   */
+  public static Map<File, Stamper> outputsOf(final GitInput input) throws GitException {
+    final Map<File, Stamper> outputs = new LinkedHashMap<>();
+    if (input.stampTree) {
+      Stamper stamper = input.allowLocalChanges ? FileIgnoreStamper.instance : new GitTreeStamper(input.directory, input.excludePaths);
+      if (input.includePaths.isEmpty())
+        outputs.put(input.directory, stamper);
+      for (String path : input.includePaths)
+        if (!PathFilters.isExcluded(path, input.excludePaths))
+          outputs.put(new File(input.directory, path), stamper);
+    } else {
+      final Stamper stamper = input.allowLocalChanges ? FileIgnoreStamper.instance : new GitBlobStamper(input.directory);
+      GitHandler.visitTrackedFilesOfRepo(input.directory, input.allowLocalChanges, input.includePaths, input.excludePaths, new PathVisitor() {
+        @Override
+        public void visit(byte[] path, int length) {
+          outputs.put(new File(input.directory, RawParseUtils.decode(path, 0, length)), stamper);
+        }
+      });
+    }
+    return outputs;
   }
 }
@@ -0,0 +1,128 @@
+package build.pluto.buildgit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.diff.DiffEntry;
+
+import build.pluto.output.Output;
+
+/**
+ * What a synchronization of a repository changed: the commit HEAD was at
+ * before and after, and the paths that were added, modified or deleted in
+ * between, relative to the root of the repository and restricted to the
+ * include and exclude paths of the input. Dependent builders can use it to
+ * only rebuild what is affected by the change.
+ *
+ * After a clone there is no previous commit and no paths are listed, since
+ * everything is new.
+ */
+public class GitSyncOutput implements Output {
+    private static final long serialVersionUID = -2946408591389004787L;
+
+    public final String previousCommit;
+    public final String commit;
+    public final List<String> added;
+    public final List<String> modified;
+    public final List<String> deleted;
+
+    public GitSyncOutput(String previousCommit, String commit, List<String> added, List<String> modified, List<String> deleted) {
+        this.previousCommit = previousCommit;
+        this.commit = commit;
+        this.added = Collections.unmodifiableList(new ArrayList<>(added));
+        this.modified = Collections.unmodifiableList(new ArrayList<>(modified));
+        this.deleted = Collections.unmodifiableList(new ArrayList<>(deleted));
+    }
+
+    /**
+     * @param diff the differences between previousCommit and commit.
+     */
+    public static GitSyncOutput of(String previousCommit, String commit, List<DiffEntry> diff) {
+        List<String> added = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (DiffEntry entry : diff) {
+            switch (entry.getChangeType()) {
+            case ADD:
+            case COPY:
+                added.add(entry.getNewPath());
+                break;
+            case MODIFY:
+                modified.add(entry.getNewPath());
+                break;
+            case DELETE:
+                deleted.add(entry.getOldPath());
+                break;
+            case RENAME:
+                deleted.add(entry.getOldPath());
+                added.add(entry.getNewPath());
+                break;
+            }
+        }
+        return new GitSyncOutput(previousCommit, commit, added, modified, deleted);
+    }
+
+    /**
+     * @return true if the repository was cloned, so every path is new.
+     */
+    public boolean isClone() {
+        return previousCommit == null;
+    }
+
+    /**
+     * @return true if no path changed.
+     */
+    public boolean isUnchanged() {
+        return !isClone() && added.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+    }
+
+    /**
+     * @param path relative to the root of the repository, using / as
+     * separator.
+     * @return true if path or a path below it was added, modified or deleted,
+     * or if the repository was cloned.
+     */
+    public boolean isChanged(String path) {
+        if (isClone())
+            return true;
+        return containsPathOrBelow(added, path) || containsPathOrBelow(modified, path) || containsPathOrBelow(deleted, path);
+    }
+
+    private static boolean containsPathOrBelow(List<String> paths, String path) {
+        for (String p : paths) {
+            if (path.isEmpty() || p.equals(path) || p.startsWith(path) && p.charAt(path.length()) == '/')
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof GitSyncOutput))
+            return false;
+        GitSyncOutput other = (GitSyncOutput) obj;
+        return (previousCommit == null ? other.previousCommit == null : previousCommit.equals(other.previousCommit))
+                && (commit == null ? other.commit == null : commit.equals(other.commit))
+                && added.equals(other.added)
+                && modified.equals(other.modified)
+                && deleted.equals(other.deleted);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = previousCommit == null ? 0 : previousCommit.hashCode();
+        result = 31 * result + (commit == null ? 0 : commit.hashCode());
+        result = 31 * result + added.hashCode();
+        result = 31 * result + modified.hashCode();
+        result = 31 * result + deleted.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "GitSyncOutput(" + previousCommit + ".." + commit + ", " + added.size() + " added, " + modified.size() + " modified, " + deleted.size() + " deleted)";
+    }
+}
@@ -0,0 +1,80 @@
+package build.pluto.buildgit;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+public class GitWorkspaceInput implements Serializable {
+    private static final long serialVersionUID = -4270944183318316702L;
+
+    public final File persistentPath;
+    public final List<GitInput> inputs;
+    public final int parallelism;
+    public final int connectionsPerHost;
+
+    private GitWorkspaceInput(Builder builder) {
+        this.persistentPath = builder.persistentPath;
+        this.inputs = builder.inputs;
+        this.parallelism = builder.parallelism;
+        this.connectionsPerHost = builder.connectionsPerHost;
+    }
+
+    public static class Builder {
+        private final File persistentPath;
+
+        private List<GitInput> inputs = new ArrayList<>();
+        private int parallelism = 8;
+        private int connectionsPerHost = 4;
+
+        /**
+         * @param persistentPath the file the dependency of the workspace
+         * build gets stored in.
+         */
+        public Builder(File persistentPath) {
+            if (persistentPath == null) {
+                throw new IllegalArgumentException("persistentPath is null");
+            }
+            this.persistentPath = persistentPath;
+        }
+
+        /**
+         * Adds a repository that gets synchronized with the workspace. Every
+         * repository needs its own directory.
+         */
+        public Builder addInput(GitInput input) {
+            for (GitInput other : this.inputs) {
+                if (other.directory.getAbsoluteFile().equals(input.directory.getAbsoluteFile()))
+                    throw new IllegalArgumentException(input.directory + " is already synchronized with " + other.url);
+            }
+            this.inputs.add(input);
+            return this;
+        }
+
+        /**
+         * @param parallelism how many repositories get synchronized at the
+         * same time. The default is 8.
+         */
+        public Builder setParallelism(int parallelism) {
+            if (parallelism < 1)
+                throw new IllegalArgumentException("parallelism has to be positive");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * @param connectionsPerHost how many repositories of the same host get
+         * synchronized at the same time. The default is 4.
+         */
+        public Builder setConnectionsPerHost(int connectionsPerHost) {
+            if (connectionsPerHost < 1)
+                throw new IllegalArgumentException("connectionsPerHost has to be positive");
+            this.connectionsPerHost = connectionsPerHost;
+            return this;
+        }
+
+        public GitWorkspaceInput build() {
+            return new GitWorkspaceInput(this);
+        }
+    }
+}
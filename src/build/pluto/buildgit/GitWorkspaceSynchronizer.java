@@ -0,0 +1,118 @@
+package build.pluto.buildgit;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.jgit.transport.URIish;
+
+import build.pluto.builder.Builder;
+import build.pluto.builder.factory.BuilderFactory;
+import build.pluto.builder.factory.BuilderFactoryFactory;
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.util.FileUtil;
+import build.pluto.output.None;
+import build.pluto.stamp.Stamper;
+
+/**
+ * Synchronizes the repositories of a workspace like {@link GitRemoteSynchronizer}
+ * does for a single repository, but concurrently. The synchronization and the
+ * enumeration of the provided files of each repository run on a pool of
+ * {@link GitWorkspaceInput#parallelism} threads, and at most
+ * {@link GitWorkspaceInput#connectionsPerHost} of them talk to the same host.
+ */
+public class GitWorkspaceSynchronizer extends Builder<GitWorkspaceInput, None> {
+
+  public static BuilderFactory<GitWorkspaceInput, None, GitWorkspaceSynchronizer> factory = BuilderFactoryFactory.of(GitWorkspaceSynchronizer.class, GitWorkspaceInput.class);
+
+  public GitWorkspaceSynchronizer(GitWorkspaceInput input) {
+    super(input);
+  }
+
+  @Override
+  protected String description(GitWorkspaceInput input) {
+    return "Git sync of " + input.inputs.size() + " repositories";
+  }
+
+  @Override
+  public File persistentPath(GitWorkspaceInput input) {
+    return input.persistentPath;
+  }
+
+  @Override
+  protected None build(GitWorkspaceInput input) throws Throwable {
+    List<Boolean> isClone = new ArrayList<>();
+    for (GitInput gitInput : input.inputs)
+      isClone.add(FileUtil.isDirectoryEmpty(gitInput.directory));
+
+    List<Future<Map<File, Stamper>>> results = new ArrayList<>();
+    Map<String, Semaphore> hostLimits = new HashMap<>();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(input.parallelism, input.inputs.size())));
+    try {
+      for (final GitInput gitInput : input.inputs) {
+        final Semaphore hostLimit = hostLimitOf(hostLimits, gitInput.url, input.connectionsPerHost);
+        results.add(executor.submit(new Callable<Map<File, Stamper>>() {
+          @Override
+          public Map<File, Stamper> call() throws Exception {
+            hostLimit.acquire();
+            try {
+              GitRemoteSynchronizer.synchronize(gitInput);
+            } finally {
+              hostLimit.release();
+            }
+            return GitRemoteSynchronizer.outputsOf(gitInput);
+          }
+        }));
+      }
+
+      Throwable failure = null;
+      for (int i = 0; i < results.size(); i++) {
+        GitInput gitInput = input.inputs.get(i);
+        try {
+          Map<File, Stamper> outputs = results.get(i).get();
+          for (Map.Entry<File, Stamper> output : outputs.entrySet())
+            this.provide(output.getKey(), output.getValue());
+          GitMetrics.filesProvided(gitInput.directory, outputs.size());
+        } catch (ExecutionException e) {
+          if (failure == null)
+            failure = e.getCause();
+        } finally {
+          if (isClone.get(i))
+            requireOther(GitRemoteSynchronizer.requirementOf(gitInput));
+        }
+      }
+      if (failure != null)
+        throw failure;
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return None.val;
+  }
+
+  private static Semaphore hostLimitOf(Map<String, Semaphore> hostLimits, String url, int connectionsPerHost) {
+    String host;
+    try {
+      host = new URIish(url).getHost();
+    } catch (URISyntaxException e) {
+      host = null;
+    }
+    if (host == null)
+      host = "";
+    Semaphore hostLimit = hostLimits.get(host.toLowerCase());
+    if (hostLimit == null) {
+      hostLimit = new Semaphore(connectionsPerHost);
+      hostLimits.put(host.toLowerCase(), hostLimit);
+    }
+    return hostLimit;
+  }
+}
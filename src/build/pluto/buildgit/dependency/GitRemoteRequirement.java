@@ -1,15 +1,25 @@
 package build.pluto.buildgit.dependency;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Ref;
 
 import org.sugarj.common.FileCommands;
 
-import build.pluto.buildgit.GitException;
 import build.pluto.buildgit.bound.UpdateBound;
-import build.pluto.buildgit.util.FileUtil;
 import build.pluto.buildgit.util.GitHandler;
+import build.pluto.buildgit.util.GitPrefetchService;
+import build.pluto.buildgit.util.LocalRepositoryState;
+import build.pluto.buildgit.util.RefAdvertisementCache;
+import build.pluto.buildgit.util.RemoteOperationPolicy;
 import build.pluto.dependency.RemoteRequirement;
 
 public class GitRemoteRequirement extends RemoteRequirement implements Serializable {
@@ -19,42 +29,160 @@ public class GitRemoteRequirement extends RemoteRequirement implements Serializa
 	private File directory;
     private UpdateBound bound;
     private String url;
+    private RemoteOperationPolicy policy;
+    private transient Map<String, Ref> advertisedRefs;
+    private transient Future<Map<String, Ref>> pendingRefs;
 
     public GitRemoteRequirement(File directory,
             UpdateBound bound,
             String url,
             long consistencyCheckInterval,
             File persistentPath) {
+        this(directory, bound, url, consistencyCheckInterval, persistentPath, null);
+    }
+
+    /**
+     * @param policy the timeouts, deadline and retries of the ls-remote, or
+     * null for {@link RemoteOperationPolicy#getDefault()}.
+     */
+    public GitRemoteRequirement(File directory,
+            UpdateBound bound,
+            String url,
+            long consistencyCheckInterval,
+            File persistentPath,
+            RemoteOperationPolicy policy) {
         super(persistentPath, consistencyCheckInterval);
         this.directory = directory;
         this.bound = bound;
         this.url = url;
+        this.policy = policy;
     }
 
 
-    public boolean isConsistentWithRemote() {
-        if (!FileCommands.exists(directory))
+    /**
+     * Starts looking up the refs of the remote in the background, so that the
+     * next check of this requirement only waits for the result instead of
+     * contacting the remote itself.
+     */
+    public synchronized void prefetch() {
+        if (pendingRefs == null && GitPrefetchService.getInstance().getPrefetchedRefs(directory, url) == null)
+            pendingRefs = RefAdvertisementCache.getInstance().getRefsAsync(url, RemoteOperationPolicy.orDefault(policy));
+    }
+
+    /**
+     * Starts the lookups of all git requirements among requirements, such
+     * that the remotes get contacted concurrently.
+     */
+    public static void prefetchAll(Collection<?> requirements) {
+        for (Object requirement : requirements)
+            if (requirement instanceof GitRemoteRequirement)
+                ((GitRemoteRequirement) requirement).prefetch();
+    }
+
+    /**
+     * Checks this requirement against the remote in the background. The
+     * result is true if the local repository is available and either the
+     * remote is not accessible or HEAD is at the bound the remote advertises,
+     * as for the blocking checks. The consistency check interval is not taken
+     * into account.
+     */
+    public synchronized Future<Boolean> checkConsistencyAsync() {
+        prefetch();
+        return new ConsistencyCheck(this);
+    }
+
+    private static class ConsistencyCheck implements Future<Boolean> {
+        private final GitRemoteRequirement requirement;
+        private final Future<Map<String, Ref>> refs;
+        private Boolean result;
+
+        private ConsistencyCheck(GitRemoteRequirement requirement) {
+            this.requirement = requirement;
+            this.refs = requirement.pendingRefs;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException {
+            try {
+                if (refs != null)
+                    refs.get();
+            } catch (ExecutionException e) {
+                // the remote is not accessible, which the check finds out again
+            }
+            return check();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+            try {
+                if (refs != null)
+                    refs.get(timeout, unit);
+            } catch (ExecutionException e) {
+                // the remote is not accessible, which the check finds out again
+            }
+            return check();
+        }
+
+        private synchronized boolean check() {
+            if (result == null) {
+                synchronized (requirement) {
+                    result = requirement.isLocalResourceAvailable() && (!requirement.isRemoteResourceAccessible() || requirement.isConsistentWithRemote());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
             return false;
-        try {
-        	String currentHash = GitHandler.getHashOfHEAD(directory);
-            return currentHash != null && bound.getBoundHash().equals(currentHash);
-        } catch (IOException | GitException e) {
+        }
+
+        @Override
+        public boolean isCancelled() {
             return false;
         }
+
+        @Override
+        public boolean isDone() {
+            return refs == null || refs.isDone();
+        }
+    }
+
+    public synchronized boolean isConsistentWithRemote() {
+        if (!FileCommands.exists(directory))
+            return false;
+        String currentHash = LocalRepositoryState.read(directory).getHeadHash();
+        // reuse the advertisement of the accessibility check
+        String boundHash = advertisedRefs != null ? GitHandler.getHashOfBound(advertisedRefs, bound) : bound.getBoundHash();
+        advertisedRefs = null;
+        return currentHash != null && currentHash.equals(boundHash);
     }
 
     @Override
-    protected boolean isRemoteResourceAccessible() {
-        return GitHandler.isUrlAccessible(url);
+    protected synchronized boolean isRemoteResourceAccessible() {
+        Map<String, Ref> prefetchedRefs = GitPrefetchService.getInstance().getPrefetchedRefs(directory, url);
+        if (prefetchedRefs != null) {
+            advertisedRefs = prefetchedRefs;
+            return true;
+        }
+        Future<Map<String, Ref>> pending = pendingRefs;
+        pendingRefs = null;
+        try {
+            if (pending != null)
+                advertisedRefs = RefAdvertisementCache.join(url, pending);
+            else
+                advertisedRefs = RefAdvertisementCache.getInstance().getRefs(url, RemoteOperationPolicy.orDefault(policy));
+            return true;
+        } catch (GitAPIException e) {
+            advertisedRefs = null;
+            return false;
+        }
     }
 
     @Override
     protected boolean isLocalResourceAvailable() {
-        try {
-			return !FileUtil.isDirectoryEmpty(directory) && GitHandler.isUrlSet(directory, url);
-		} catch (GitException e) {
-			return false;
-		}
+        LocalRepositoryState state = LocalRepositoryState.read(directory);
+        return !state.isEmpty() && state.isUrlSet(url);
     }
 
     @Override
@@ -0,0 +1,128 @@
+package build.pluto.buildgit.metrics;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Dispatches the measurements of git operations to the registered
+ * {@link GitMetricsListener}s. Without listeners nothing gets measured.
+ *
+ * @see InMemoryGitMetrics
+ */
+public class GitMetrics {
+
+  public static final String CACHE_REF_ADVERTISEMENTS = "refAdvertisements";
+  public static final String CACHE_REPOSITORIES = "repositories";
+  public static final String CACHE_MIRRORS = "mirrors";
+
+  private static final List<GitMetricsListener> listeners = new CopyOnWriteArrayList<>();
+
+  public static void addListener(GitMetricsListener listener) {
+    if (!listeners.contains(listener))
+      listeners.add(listener);
+  }
+
+  public static void removeListener(GitMetricsListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Measures an operation. Call {@link Timer#succeeded()} once the operation
+   * succeeded and {@link Timer#stop()} in a finally block.
+   */
+  public static Timer start(GitOperation operation, String target) {
+    return new Timer(operation, target);
+  }
+
+  public static void cacheAccessed(String cache, boolean hit) {
+    for (GitMetricsListener listener : listeners)
+      listener.cacheAccessed(cache, hit);
+  }
+
+  public static void filesProvided(File directory, int files) {
+    for (GitMetricsListener listener : listeners)
+      listener.filesProvided(directory, files);
+  }
+
+  /**
+   * @return a progress monitor for transports from or to url that reports the
+   * number of received objects. JGit does not report transferred bytes to
+   * progress monitors, so they cannot be measured here.
+   */
+  public static ProgressMonitor progressMonitor(String url) {
+    if (listeners.isEmpty())
+      return NullProgressMonitor.INSTANCE;
+    return new ObjectCountingMonitor(url);
+  }
+
+  public static class Timer {
+    private final GitOperation operation;
+    private final String target;
+    private final long start;
+    private boolean successful = false;
+
+    private Timer(GitOperation operation, String target) {
+      this.operation = operation;
+      this.target = target;
+      this.start = System.nanoTime();
+    }
+
+    public void succeeded() {
+      this.successful = true;
+    }
+
+    public void stop() {
+      long nanos = System.nanoTime() - start;
+      for (GitMetricsListener listener : listeners)
+        listener.operationCompleted(operation, target, nanos, successful);
+    }
+  }
+
+  /**
+   * Counts the objects of the first task the transport ends, which is
+   * receiving the pack. The tasks the remote reports before, like counting
+   * and compressing objects, get begun but are never ended.
+   */
+  private static class ObjectCountingMonitor implements ProgressMonitor {
+    private final String url;
+    private boolean received = false;
+    private int objects = 0;
+
+    private ObjectCountingMonitor(String url) {
+      this.url = url;
+    }
+
+    @Override
+    public void start(int totalTasks) {
+    }
+
+    @Override
+    public void beginTask(String title, int totalWork) {
+      objects = 0;
+    }
+
+    @Override
+    public void update(int completed) {
+      objects += completed;
+    }
+
+    @Override
+    public void endTask() {
+      if (!received && objects > 0) {
+        for (GitMetricsListener listener : listeners)
+          listener.objectsReceived(url, objects);
+      }
+      received = true;
+      objects = 0;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+}
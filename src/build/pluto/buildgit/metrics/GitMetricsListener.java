@@ -0,0 +1,35 @@
+package build.pluto.buildgit.metrics;
+
+import java.io.File;
+
+/**
+ * Receives the measurements of git operations. Listeners get called from the
+ * threads performing the operations and have to be thread safe.
+ *
+ * @see GitMetrics#addListener(GitMetricsListener)
+ */
+public interface GitMetricsListener {
+
+  /**
+   * @param target the url of the remote or the directory of the repository
+   * the operation was performed on.
+   * @param nanos how long the operation took.
+   */
+  public void operationCompleted(GitOperation operation, String target, long nanos, boolean successful);
+
+  /**
+   * @param objects how many objects were received from the remote at url.
+   */
+  public void objectsReceived(String url, int objects);
+
+  /**
+   * @param cache the name of the cache, one of the CACHE_ constants of
+   * {@link GitMetrics}.
+   */
+  public void cacheAccessed(String cache, boolean hit);
+
+  /**
+   * @param files how many files a synchronization of directory provided.
+   */
+  public void filesProvided(File directory, int files);
+}
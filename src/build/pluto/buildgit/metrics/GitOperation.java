@@ -0,0 +1,15 @@
+package build.pluto.buildgit.metrics;
+
+/**
+ * The git operations whose latency gets recorded by {@link GitMetrics}.
+ */
+public enum GitOperation {
+  LS_REMOTE,
+  CLONE,
+  FETCH,
+  MERGE,
+  CHECKOUT,
+  RESET,
+  DIFF,
+  FILE_WALK
+}
@@ -0,0 +1,187 @@
+package build.pluto.buildgit.metrics;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps the measurements of git operations in memory: latency histograms per
+ * operation, latencies and received objects per remote, cache hit rates and
+ * the number of files provided per synchronized directory.
+ *
+ * {@link #install()} registers a shared instance as listener and exposes it
+ * via JMX as {@value #OBJECT_NAME}.
+ */
+public class InMemoryGitMetrics implements GitMetricsListener, InMemoryGitMetricsMXBean {
+
+  public static final String OBJECT_NAME = "build.pluto.buildgit:type=GitMetrics";
+
+  private static InMemoryGitMetrics installed = null;
+
+  /**
+   * Registers the shared instance with {@link GitMetrics} and the platform
+   * MBean server, unless this happened before.
+   */
+  public static synchronized InMemoryGitMetrics install() {
+    if (installed == null) {
+      installed = new InMemoryGitMetrics();
+      GitMetrics.addListener(installed);
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name))
+          server.registerMBean(installed, name);
+      } catch (JMException e) {
+        // metrics are still available through the returned instance
+      }
+    }
+    return installed;
+  }
+
+  private static class HitCount {
+    private long hits = 0;
+    private long misses = 0;
+  }
+
+  private final Map<GitOperation, LatencyHistogram> latencies = new TreeMap<>();
+  private final Map<String, LatencyHistogram> remoteLatencies = new TreeMap<>();
+  private final Map<String, Long> objectsReceived = new TreeMap<>();
+  private final Map<String, HitCount> cacheAccesses = new TreeMap<>();
+  private final Map<String, Long> filesProvided = new TreeMap<>();
+
+  @Override
+  public void operationCompleted(GitOperation operation, String target, long nanos, boolean successful) {
+    histogramOf(latencies, operation).record(nanos, successful);
+    if (operation == GitOperation.LS_REMOTE || operation == GitOperation.CLONE || operation == GitOperation.FETCH)
+      histogramOf(remoteLatencies, target).record(nanos, successful);
+  }
+
+  @Override
+  public synchronized void objectsReceived(String url, int objects) {
+    Long received = objectsReceived.get(url);
+    objectsReceived.put(url, (received == null ? 0 : received) + objects);
+  }
+
+  @Override
+  public synchronized void cacheAccessed(String cache, boolean hit) {
+    HitCount count = cacheAccesses.get(cache);
+    if (count == null) {
+      count = new HitCount();
+      cacheAccesses.put(cache, count);
+    }
+    if (hit)
+      count.hits++;
+    else
+      count.misses++;
+  }
+
+  @Override
+  public synchronized void filesProvided(File directory, int files) {
+    filesProvided.put(directory.getAbsolutePath(), (long) files);
+  }
+
+  @Override
+  public synchronized Map<String, Long> getOperationCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<GitOperation, LatencyHistogram> e : latencies.entrySet())
+      counts.put(e.getKey().name(), e.getValue().getCount());
+    return counts;
+  }
+
+  @Override
+  public synchronized Map<String, Long> getOperationFailures() {
+    Map<String, Long> failures = new TreeMap<>();
+    for (Map.Entry<GitOperation, LatencyHistogram> e : latencies.entrySet())
+      failures.put(e.getKey().name(), e.getValue().getFailures());
+    return failures;
+  }
+
+  @Override
+  public synchronized Map<String, Double> getMeanLatencyMillis() {
+    Map<String, Double> means = new TreeMap<>();
+    for (Map.Entry<GitOperation, LatencyHistogram> e : latencies.entrySet())
+      means.put(e.getKey().name(), e.getValue().getMeanMillis());
+    return means;
+  }
+
+  @Override
+  public synchronized Map<String, Double> getMaxLatencyMillis() {
+    Map<String, Double> maxima = new TreeMap<>();
+    for (Map.Entry<GitOperation, LatencyHistogram> e : latencies.entrySet())
+      maxima.put(e.getKey().name(), e.getValue().getMaxMillis());
+    return maxima;
+  }
+
+  @Override
+  public Map<String, Long> getP50LatencyMillis() {
+    return getPercentileMillis(50);
+  }
+
+  @Override
+  public Map<String, Long> getP95LatencyMillis() {
+    return getPercentileMillis(95);
+  }
+
+  @Override
+  public Map<String, Long> getP99LatencyMillis() {
+    return getPercentileMillis(99);
+  }
+
+  private synchronized Map<String, Long> getPercentileMillis(double percentile) {
+    Map<String, Long> percentiles = new TreeMap<>();
+    for (Map.Entry<GitOperation, LatencyHistogram> e : latencies.entrySet())
+      percentiles.put(e.getKey().name(), e.getValue().getPercentileMillis(percentile));
+    return percentiles;
+  }
+
+  @Override
+  public synchronized Map<String, Double> getMeanRemoteLatencyMillis() {
+    Map<String, Double> means = new TreeMap<>();
+    for (Map.Entry<String, LatencyHistogram> e : remoteLatencies.entrySet())
+      means.put(e.getKey(), e.getValue().getMeanMillis());
+    return means;
+  }
+
+  @Override
+  public synchronized Map<String, Long> getObjectsReceived() {
+    return new TreeMap<>(objectsReceived);
+  }
+
+  @Override
+  public synchronized Map<String, Double> getCacheHitRates() {
+    Map<String, Double> rates = new TreeMap<>();
+    for (Map.Entry<String, HitCount> e : cacheAccesses.entrySet()) {
+      HitCount count = e.getValue();
+      rates.put(e.getKey(), (double) count.hits / (count.hits + count.misses));
+    }
+    return rates;
+  }
+
+  @Override
+  public synchronized Map<String, Long> getFilesProvided() {
+    return new TreeMap<>(filesProvided);
+  }
+
+  @Override
+  public synchronized void reset() {
+    latencies.clear();
+    remoteLatencies.clear();
+    objectsReceived.clear();
+    cacheAccesses.clear();
+    filesProvided.clear();
+  }
+
+  private synchronized <K> LatencyHistogram histogramOf(Map<K, LatencyHistogram> histograms, K key) {
+    LatencyHistogram histogram = histograms.get(key);
+    if (histogram == null) {
+      histogram = new LatencyHistogram();
+      histograms.put(key, histogram);
+    }
+    return histogram;
+  }
+}
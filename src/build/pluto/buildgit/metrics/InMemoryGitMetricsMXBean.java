@@ -0,0 +1,41 @@
+package build.pluto.buildgit.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link InMemoryGitMetrics}. Latencies are keyed by
+ * {@link GitOperation}, remote latencies by url.
+ */
+public interface InMemoryGitMetricsMXBean {
+
+  public Map<String, Long> getOperationCounts();
+
+  public Map<String, Long> getOperationFailures();
+
+  public Map<String, Double> getMeanLatencyMillis();
+
+  public Map<String, Double> getMaxLatencyMillis();
+
+  public Map<String, Long> getP50LatencyMillis();
+
+  public Map<String, Long> getP95LatencyMillis();
+
+  public Map<String, Long> getP99LatencyMillis();
+
+  /**
+   * @return the mean latency of ls-remotes, clones and fetches by url.
+   */
+  public Map<String, Double> getMeanRemoteLatencyMillis();
+
+  public Map<String, Long> getObjectsReceived();
+
+  public Map<String, Double> getCacheHitRates();
+
+  /**
+   * @return how many files the last synchronization of each directory
+   * provided.
+   */
+  public Map<String, Long> getFilesProvided();
+
+  public void reset();
+}
@@ -0,0 +1,57 @@
+package build.pluto.buildgit.metrics;
+
+/**
+ * Histogram of latencies with buckets of powers of two milliseconds.
+ * Percentiles are reported as the upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+  private static final int BUCKETS = 32;
+
+  private final long[] buckets = new long[BUCKETS];
+  private long count = 0;
+  private long failures = 0;
+  private long totalNanos = 0;
+  private long maxNanos = 0;
+
+  synchronized void record(long nanos, boolean successful) {
+    long millis = Math.max(0, nanos / 1000000);
+    int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+    buckets[bucket]++;
+    count++;
+    if (!successful)
+      failures++;
+    totalNanos += nanos;
+    maxNanos = Math.max(maxNanos, nanos);
+  }
+
+  synchronized long getCount() {
+    return count;
+  }
+
+  synchronized long getFailures() {
+    return failures;
+  }
+
+  synchronized double getMeanMillis() {
+    return count == 0 ? 0 : totalNanos / 1e6 / count;
+  }
+
+  synchronized double getMaxMillis() {
+    return maxNanos / 1e6;
+  }
+
+  /**
+   * @param percentile between 0 and 100.
+   */
+  synchronized long getPercentileMillis(double percentile) {
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += buckets[bucket];
+      if (seen >= rank && seen > 0)
+        return bucket == 0 ? 0 : 1L << bucket;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,163 @@
+package build.pluto.buildgit.stamp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+
+import build.pluto.buildgit.util.RepositoryPool;
+import build.pluto.stamp.FileHashStamper;
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps files of a repository with their git blob id.
+ *
+ * If the size and modification time of a file match its entry in the index,
+ * the blob id stored in the index is used and the file is not read. Entries
+ * that were modified in the same instant the index was written cannot be
+ * trusted (racy git) and, like all files that look modified, get hashed.
+ * Files of submodules are stamped against the index of their submodule.
+ * Files outside of the repository are stamped by {@link FileHashStamper}.
+ */
+public class GitBlobStamper implements Stamper {
+
+  private static final long serialVersionUID = -2712315470655185305L;
+
+  private static final int CACHED_INDEXES = 16;
+
+  private static class IndexSnapshot {
+    private final DirCache dirCache;
+    private final long indexLastModified;
+
+    private IndexSnapshot(DirCache dirCache, long indexLastModified) {
+      this.dirCache = dirCache;
+      this.indexLastModified = indexLastModified;
+    }
+  }
+
+  private static final Map<File, IndexSnapshot> indexes = new LinkedHashMap<File, IndexSnapshot>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<File, IndexSnapshot> eldest) {
+      return size() > CACHED_INDEXES;
+    }
+  };
+
+  private final File directory;
+
+  /**
+   * @param directory the working tree of the repository.
+   */
+  public GitBlobStamper(File directory) {
+    this.directory = directory.getAbsoluteFile();
+  }
+
+  @Override
+  public Stamp stampOf(File p) {
+    String path = relativePath(p);
+    if (path == null || p.isDirectory()) {
+      return FileHashStamper.instance.stampOf(p);
+    }
+    if (!p.exists()) {
+      return new ValueStamp<String>(this, null);
+    }
+    try {
+      IndexSnapshot index = readIndex();
+      DirCacheEntry entry = index.dirCache.getEntry(path);
+      if (entry == null) {
+        String submodule = submoduleOf(index.dirCache, path);
+        if (submodule != null) {
+          return new GitBlobStamper(new File(directory, submodule)).stampOf(p);
+        }
+      }
+      if (entry != null && isClean(entry, p, index.indexLastModified)) {
+        return new ValueStamp<String>(this, entry.getObjectId().name());
+      }
+      return new ValueStamp<String>(this, hash(p).name());
+    } catch (IOException e) {
+      return FileHashStamper.instance.stampOf(p);
+    }
+  }
+
+  /**
+   * @return true if the stat data of file matches its index entry and the
+   * entry was not modified in the instant the index was written.
+   */
+  static boolean isClean(DirCacheEntry entry, File file, long indexLastModified) {
+    long lastModified = file.lastModified();
+    return entry.getLength() == (int) file.length()
+        && entry.getLastModified() == lastModified
+        && lastModified < indexLastModified;
+  }
+
+  /**
+   * @return the path of the gitlink in dirCache that contains path or null
+   * if path is not part of a submodule.
+   */
+  private static String submoduleOf(DirCache dirCache, String path) {
+    for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+      DirCacheEntry entry = dirCache.getEntry(path.substring(0, i));
+      if (entry != null && entry.getFileMode() == FileMode.GITLINK) {
+        return path.substring(0, i);
+      }
+    }
+    return null;
+  }
+
+  static ObjectId hash(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, file.length(), in);
+    }
+  }
+
+  private String relativePath(File file) {
+    Path relative = directory.toPath().relativize(file.getAbsoluteFile().toPath());
+    if (relative.toString().isEmpty() || relative.startsWith("..") || relative.startsWith(Constants.DOT_GIT)) {
+      return null;
+    }
+    return relative.toString().replace(File.separatorChar, '/');
+  }
+
+  private IndexSnapshot readIndex() throws IOException {
+    synchronized (indexes) {
+      IndexSnapshot index = indexes.get(directory);
+      if (index != null && !index.dirCache.isOutdated()) {
+        return index;
+      }
+      Repository repo = RepositoryPool.getInstance().acquire(directory);
+      try {
+        File indexFile = repo.getIndexFile();
+        long indexLastModified = indexFile.lastModified();
+        index = new IndexSnapshot(DirCache.read(indexFile, repo.getFS()), indexLastModified);
+      } finally {
+        RepositoryPool.getInstance().release(repo);
+      }
+      indexes.put(directory, index);
+      return index;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof GitBlobStamper && ((GitBlobStamper) o).directory.equals(directory);
+  }
+
+  @Override
+  public int hashCode() {
+    return directory.hashCode();
+  }
+}
@@ -0,0 +1,222 @@
+package build.pluto.buildgit.stamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import build.pluto.buildgit.util.PathFilters;
+import build.pluto.buildgit.util.RepositoryPool;
+import build.pluto.stamp.FileHashStamper;
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+/**
+ * Stamps a repository, or a directory or file within it, by the id of its
+ * tree or blob in the commit of HEAD. The stamp of the repository itself
+ * also contains the commit id.
+ *
+ * Paths excluded by the stamper do not contribute to the stamp. Directories
+ * that contain an excluded path are stamped by the ids of their remaining
+ * entries instead of their tree id, and the commit id is left out.
+ *
+ * Local changes to tracked files are detected by comparing the index against
+ * HEAD and the stat data of the files against the index. Files whose stat
+ * data changed contribute their path, size and modification time to the
+ * stamp, so the stamp changes whenever such a file is touched again.
+ * Untracked files are not considered.
+ *
+ * Builders that consume a repository synchronized with
+ * {@link build.pluto.buildgit.GitInput.Builder#setStampTree(boolean)} can
+ * require the sub-paths they depend on with this stamper:
+ * <pre>
+ * require(new File(repoDir, "sub/dir"), new GitTreeStamper(repoDir));
+ * </pre>
+ */
+public class GitTreeStamper implements Stamper {
+
+  private static final long serialVersionUID = -3185271367542346522L;
+
+  private final File directory;
+  private final List<String> excludePaths;
+
+  /**
+   * @param directory the working tree of the repository.
+   */
+  public GitTreeStamper(File directory) {
+    this(directory, Collections.<String>emptyList());
+  }
+
+  /**
+   * @param directory the working tree of the repository.
+   * @param excludePaths paths relative to directory, using / as separator,
+   * that are ignored together with everything below them.
+   */
+  public GitTreeStamper(File directory, Collection<String> excludePaths) {
+    this.directory = directory.getAbsoluteFile();
+    this.excludePaths = new ArrayList<>(excludePaths);
+  }
+
+  @Override
+  public Stamp stampOf(File p) {
+    String path = relativePath(p);
+    if (path == null) {
+      return FileHashStamper.instance.stampOf(p);
+    }
+    try {
+      return new ValueStamp<String>(this, stampValue(path));
+    } catch (IOException e) {
+      return new ValueStamp<String>(this, null);
+    }
+  }
+
+  private String stampValue(String path) throws IOException {
+    Repository repo = RepositoryPool.getInstance().acquire(directory);
+    try (RevWalk revWalk = new RevWalk(repo); TreeWalk treeWalk = new TreeWalk(repo)) {
+      StringBuilder value = new StringBuilder();
+      ObjectId head = repo.resolve(Constants.HEAD);
+      if (head != null) {
+        RevCommit commit = revWalk.parseCommit(head);
+        ObjectId id = commit.getTree();
+        boolean isTree = true;
+        if (path.isEmpty()) {
+          if (excludePaths.isEmpty())
+            value.append("commit ").append(head.name()).append(' ');
+        } else {
+          try (TreeWalk pathWalk = TreeWalk.forPath(repo, path, commit.getTree())) {
+            id = pathWalk == null ? null : pathWalk.getObjectId(0);
+            isTree = pathWalk != null && pathWalk.getFileMode(0) == FileMode.TREE;
+          }
+        }
+        if (id != null && isTree && containsExcludedPath(path))
+          value.append("entries ").append(entriesDigest(repo, id, path));
+        else
+          value.append("tree ").append(id == null ? "none" : id.name());
+        treeWalk.addTree(commit.getTree());
+      } else {
+        value.append("tree none");
+        treeWalk.addTree(new EmptyTreeIterator());
+      }
+
+      long indexLastModified = repo.getIndexFile().lastModified();
+      DirCache dirCache = repo.readDirCache();
+      treeWalk.addTree(new DirCacheIterator(dirCache));
+      treeWalk.setRecursive(true);
+      if (!path.isEmpty() || !excludePaths.isEmpty()) {
+        List<String> includePaths = path.isEmpty() ? Collections.<String>emptyList() : Collections.singletonList(path);
+        treeWalk.setFilter(PathFilters.create(includePaths, excludePaths));
+      }
+
+      MessageDigest dirtyDigest = null;
+      while (treeWalk.next()) {
+        DirCacheIterator indexIterator = treeWalk.getTree(1, DirCacheIterator.class);
+        DirCacheEntry entry = indexIterator == null ? null : indexIterator.getDirCacheEntry();
+        File file = new File(directory, treeWalk.getPathString());
+        if (isDirty(treeWalk, entry, file, indexLastModified)) {
+          if (dirtyDigest == null) {
+            dirtyDigest = newDigest();
+          }
+          dirtyDigest.update(Constants.encode(treeWalk.getPathString() + " " + file.length() + " " + file.lastModified() + "\n"));
+        }
+      }
+      if (dirtyDigest != null) {
+        value.append(" dirty ").append(ObjectId.fromRaw(dirtyDigest.digest()).name());
+      }
+      return value.toString();
+    } finally {
+      RepositoryPool.getInstance().release(repo);
+    }
+  }
+
+  /**
+   * @return true if an excluded path lies below path.
+   */
+  private boolean containsExcludedPath(String path) {
+    for (String excluded : excludePaths) {
+      if (path.isEmpty() || excluded.startsWith(path + "/"))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Digests the entries of tree that are not excluded. Subtrees without
+   * excluded paths contribute their id and are not entered.
+   *
+   * @param path the path of tree relative to the root of the repository.
+   */
+  private String entriesDigest(Repository repo, ObjectId tree, String path) throws IOException {
+    MessageDigest digest = newDigest();
+    String prefix = path.isEmpty() ? "" : path + "/";
+    try (TreeWalk walk = new TreeWalk(repo)) {
+      walk.addTree(tree);
+      walk.setRecursive(false);
+      while (walk.next()) {
+        String entryPath = prefix + walk.getPathString();
+        if (PathFilters.isExcluded(entryPath, excludePaths))
+          continue;
+        if (walk.isSubtree() && containsExcludedPath(entryPath)) {
+          walk.enterSubtree();
+          continue;
+        }
+        digest.update(Constants.encode(walk.getRawMode(0) + " " + entryPath + " " + walk.getObjectId(0).name() + "\n"));
+      }
+    }
+    return ObjectId.fromRaw(digest.digest()).name();
+  }
+
+  private static boolean isDirty(TreeWalk treeWalk, DirCacheEntry entry, File file, long indexLastModified) throws IOException {
+    if (entry == null || !treeWalk.idEqual(0, 1) || treeWalk.getRawMode(0) != treeWalk.getRawMode(1)) {
+      return true;
+    }
+    if (entry.getFileMode() == FileMode.GITLINK || GitBlobStamper.isClean(entry, file, indexLastModified)) {
+      return false;
+    }
+    return !file.isFile() || !GitBlobStamper.hash(file).equals(entry.getObjectId());
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private String relativePath(File file) {
+    Path relative = directory.toPath().relativize(file.getAbsoluteFile().toPath());
+    if (relative.startsWith("..") || relative.startsWith(Constants.DOT_GIT)) {
+      return null;
+    }
+    return relative.toString().replace(File.separatorChar, '/');
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof GitTreeStamper && ((GitTreeStamper) o).directory.equals(directory)
+        && ((GitTreeStamper) o).excludePaths.equals(excludePaths);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * directory.hashCode() + excludePaths.hashCode();
+  }
+}
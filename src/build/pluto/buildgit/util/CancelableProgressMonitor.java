@@ -0,0 +1,64 @@
+package build.pluto.buildgit.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+
+/**
+ * Progress monitor that cancels the JGit operation it is passed to once its
+ * deadline passed, the thread running the operation got interrupted or
+ * {@link #cancel()} was called. Progress is reported to a delegate.
+ */
+public class CancelableProgressMonitor implements ProgressMonitor {
+
+  private final ProgressMonitor delegate;
+  private final long deadline;
+  private final Thread thread;
+  private volatile boolean cancelled = false;
+
+  /**
+   * @param deadline in {@link System#nanoTime()}, or 0 for none.
+   */
+  public CancelableProgressMonitor(ProgressMonitor delegate, long deadline) {
+    this.delegate = delegate;
+    this.deadline = deadline;
+    this.thread = Thread.currentThread();
+  }
+
+  public static CancelableProgressMonitor withTimeout(ProgressMonitor delegate, long timeoutMillis) {
+    return new CancelableProgressMonitor(delegate, timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0);
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isDeadlinePassed() {
+    return deadline != 0 && System.nanoTime() - deadline >= 0;
+  }
+
+  @Override
+  public boolean isCancelled() {
+    return cancelled || thread.isInterrupted() || isDeadlinePassed() || delegate.isCancelled();
+  }
+
+  @Override
+  public void start(int totalTasks) {
+    delegate.start(totalTasks);
+  }
+
+  @Override
+  public void beginTask(String title, int totalWork) {
+    delegate.beginTask(title, totalWork);
+  }
+
+  @Override
+  public void update(int completed) {
+    delegate.update(completed);
+  }
+
+  @Override
+  public void endTask() {
+    delegate.endTask();
+  }
+}
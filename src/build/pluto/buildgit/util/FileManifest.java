@@ -0,0 +1,325 @@
+package build.pluto.buildgit.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * The tracked files of a repository at the tree of HEAD, persisted below the
+ * git directory so that listing the files of an unchanged repository reads
+ * one small file instead of the index.
+ *
+ * A manifest is stored for each tree and key and is only used while HEAD
+ * points to its tree and the index either has the checksum it had when the
+ * manifest was written or matches the tree of HEAD. Neither check reads the
+ * working tree. Each path is stored as the length of the prefix it shares
+ * with the previous path plus the rest. Only the {@link #MAX_MANIFESTS} most
+ * recently written manifests are kept.
+ */
+public class FileManifest {
+
+  public static final String DIRECTORY = "pluto-manifests";
+  public static final int MAX_MANIFESTS = 8;
+
+  private static final int MAGIC = 0x50474d46;
+  private static final int VERSION = 1;
+  private static final int CHECKSUM_OFFSET = 8 + Constants.OBJECT_ID_LENGTH;
+  private static final byte SUBMODULE = 1;
+
+  private final byte[][] paths;
+  private final boolean[] submodules;
+
+  private FileManifest(byte[][] paths, boolean[] submodules) {
+    this.paths = paths;
+    this.submodules = submodules;
+  }
+
+  public int size() {
+    return paths.length;
+  }
+
+  /**
+   * @return the path of the i-th file relative to the root of the
+   * repository.
+   */
+  public String getPath(int i) {
+    return RawParseUtils.decode(paths[i]);
+  }
+
+  /**
+   * @return the UTF-8 encoded path of the i-th file, which must not be
+   * modified.
+   */
+  public byte[] getRawPath(int i) {
+    return paths[i];
+  }
+
+  /**
+   * @return true if the i-th path is a gitlink, whose files are not part of
+   * the manifest.
+   */
+  public boolean isSubmodule(int i) {
+    return submodules[i];
+  }
+
+  /**
+   * @param key identifies the paths the listing is restricted to, see
+   * {@link PathFilters#keyOf}.
+   * @return the manifest of the tree of HEAD and key or null if there is
+   * none that is still valid.
+   */
+  public static FileManifest read(Repository repo, String key) {
+    try {
+      ObjectId tree = repo.resolve(Constants.HEAD + "^{tree}");
+      if (tree == null) {
+        return null;
+      }
+      File file = fileOf(repo, tree, key);
+      byte[] indexChecksum = readIndexChecksum(repo);
+      if (!file.isFile() || indexChecksum == null) {
+        return null;
+      }
+      FileManifest manifest;
+      boolean checksumChanged;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !tree.equals(readId(in))) {
+          return null;
+        }
+        byte[] checksum = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(checksum);
+        byte[] storedKey = new byte[checkedLength(in.readInt(), file)];
+        in.readFully(storedKey);
+        if (!Arrays.equals(storedKey, key.getBytes(StandardCharsets.UTF_8))) {
+          return null;
+        }
+        checksumChanged = !Arrays.equals(checksum, indexChecksum);
+        if (checksumChanged && !tree.equals(indexTreeOf(repo))) {
+          return null;
+        }
+        manifest = decode(in, file);
+      }
+      if (checksumChanged) {
+        updateChecksum(file, indexChecksum);
+      }
+      return manifest;
+    } catch (IOException | RuntimeException e) {
+      // a missing or broken manifest only costs a walk of the index
+      return null;
+    }
+  }
+
+  /**
+   * Persists paths as the manifest of the tree of HEAD and key if the
+   * index matches that tree, which is checked by hashing the trees of the
+   * index. Failures are ignored.
+   *
+   * @param submodules the indices of the paths that are gitlinks.
+   */
+  public static void write(Repository repo, String key, PathTable paths, BitSet submodules) {
+    try {
+      ObjectId tree = repo.resolve(Constants.HEAD + "^{tree}");
+      byte[] indexChecksum = readIndexChecksum(repo);
+      if (tree == null || indexChecksum == null || !tree.equals(indexTreeOf(repo))) {
+        return;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      tree.copyRawTo(out);
+      out.write(indexChecksum);
+      byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(keyBytes.length);
+      out.write(keyBytes);
+      out.writeInt(paths.size());
+      byte[] previous = new byte[0];
+      for (int i = 0; i < paths.size(); i++) {
+        byte[] path = paths.getRawPath(i);
+        int shared = 0;
+        while (shared < previous.length && shared < path.length && previous[shared] == path[shared]) {
+          shared++;
+        }
+        out.writeByte(submodules.get(i) ? SUBMODULE : 0);
+        writeVarInt(out, shared);
+        writeVarInt(out, path.length - shared);
+        out.write(path, shared, path.length - shared);
+        previous = path;
+      }
+      out.flush();
+
+      File file = fileOf(repo, tree, key);
+      File directory = file.getParentFile();
+      directory.mkdirs();
+      File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+      try {
+        Files.write(tmp.toPath(), bytes.toByteArray());
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        tmp.delete();
+      }
+      prune(directory);
+    } catch (IOException | RuntimeException e) {
+      // the manifest is only a cache
+    }
+  }
+
+  private static FileManifest decode(DataInputStream in, File file) throws IOException {
+    int count = checkedLength(in.readInt(), file);
+    long size = file.length();
+    byte[][] paths = new byte[count][];
+    boolean[] submodules = new boolean[count];
+    byte[] path = new byte[256];
+    int length = 0;
+    for (int i = 0; i < count; i++) {
+      submodules[i] = in.readByte() == SUBMODULE;
+      int shared = readVarInt(in);
+      int rest = readVarInt(in);
+      if (shared > length || rest > size) {
+        throw new IOException("Broken manifest " + file);
+      }
+      length = shared + rest;
+      if (length > path.length) {
+        path = Arrays.copyOf(path, Math.max(length, 2 * path.length));
+      }
+      in.readFully(path, shared, rest);
+      paths[i] = Arrays.copyOf(path, length);
+    }
+    return new FileManifest(paths, submodules);
+  }
+
+  private static File fileOf(Repository repo, ObjectId tree, String key) {
+    MessageDigest digest = Constants.newMessageDigest();
+    digest.update(tree.name().getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(key.getBytes(StandardCharsets.UTF_8));
+    return new File(new File(repo.getDirectory(), DIRECTORY), ObjectId.fromRaw(digest.digest()).name());
+  }
+
+  /**
+   * @return the checksum at the end of the index, which changes whenever the
+   * index gets written with different content, or null if there is no index.
+   */
+  private static byte[] readIndexChecksum(Repository repo) throws IOException {
+    File index = repo.getIndexFile();
+    if (!index.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(index, "r")) {
+      if (raf.length() < Constants.OBJECT_ID_LENGTH) {
+        return null;
+      }
+      byte[] checksum = new byte[Constants.OBJECT_ID_LENGTH];
+      raf.seek(raf.length() - Constants.OBJECT_ID_LENGTH);
+      raf.readFully(checksum);
+      return checksum;
+    }
+  }
+
+  /**
+   * @return the id of the tree the index describes, which gets computed
+   * without inserting any object.
+   */
+  private static ObjectId indexTreeOf(Repository repo) throws IOException {
+    DirCache dirCache = repo.readDirCache();
+    if (dirCache.hasUnmergedPaths()) {
+      return null;
+    }
+    try (ObjectInserter hasher = new Hasher()) {
+      return dirCache.writeTree(hasher);
+    }
+  }
+
+  /**
+   * Computes the ids of inserted objects without storing them.
+   */
+  private static class Hasher extends ObjectInserter.Formatter {
+    @Override
+    public ObjectId insert(int type, long length, InputStream in) throws IOException {
+      return idFor(type, length, in);
+    }
+  }
+
+  private static void updateChecksum(File file, byte[] checksum) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(CHECKSUM_OFFSET);
+      raf.write(checksum);
+    }
+  }
+
+  private static void prune(File directory) {
+    File[] manifests = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return ObjectId.isId(file.getName());
+      }
+    });
+    if (manifests == null || manifests.length <= MAX_MANIFESTS) {
+      return;
+    }
+    Arrays.sort(manifests, new Comparator<File>() {
+      @Override
+      public int compare(File f1, File f2) {
+        return Long.compare(f2.lastModified(), f1.lastModified());
+      }
+    });
+    for (int i = MAX_MANIFESTS; i < manifests.length; i++) {
+      manifests[i].delete();
+    }
+  }
+
+  private static ObjectId readId(DataInputStream in) throws IOException {
+    byte[] id = new byte[Constants.OBJECT_ID_LENGTH];
+    in.readFully(id);
+    return ObjectId.fromRaw(id);
+  }
+
+  /**
+   * @return length if it can be the length of something stored in file.
+   */
+  private static int checkedLength(int length, File file) throws IOException {
+    if (length < 0 || length > file.length()) {
+      throw new IOException("Broken manifest " + file);
+    }
+    return length;
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.readByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+}
@@ -1,13 +1,37 @@
 package build.pluto.buildgit.util;
 
 import java.io.File;
-
-import org.sugarj.common.FileCommands;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 
 public class FileUtil {
 
+    /**
+     * Returns true if directory does not exist or contains no files, only
+     * empty subdirectories if any. Stops at the first file instead of listing
+     * the directory recursively.
+     */
     public static boolean isDirectoryEmpty(File directory) {
-        return FileCommands.listFilesRecursive(directory.toPath()).size() == 0;
+        if (!directory.isDirectory()) {
+            return !directory.exists();
+        }
+        final boolean[] foundFile = { false };
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    foundFile[0] = true;
+                    return FileVisitResult.TERMINATE;
+                }
+            });
+        } catch (IOException e) {
+            return false;
+        }
+        return !foundFile[0];
     }
 
     public static boolean containsFile(File directory, File file) {
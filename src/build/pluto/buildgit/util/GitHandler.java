@@ -2,167 +2,636 @@ package build.pluto.buildgit.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.eclipse.jgit.api.CloneCommand;
+import org.eclipse.jgit.api.CreateBranchCommand.SetupUpstreamMode;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.MergeCommand;
 import org.eclipse.jgit.api.MergeResult;
 import org.eclipse.jgit.api.ResetCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryCache;
 import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
 import org.eclipse.jgit.treewalk.FileTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.eclipse.jgit.util.FS;
+import org.eclipse.jgit.util.FileUtils;
+import org.eclipse.jgit.util.RawParseUtils;
 
+import build.pluto.buildgit.FastForwardMode;
 import build.pluto.buildgit.GitException;
 import build.pluto.buildgit.GitInput;
 import build.pluto.buildgit.bound.BranchBound;
 import build.pluto.buildgit.bound.CommitHashBound;
+import build.pluto.buildgit.bound.TagBound;
 import build.pluto.buildgit.bound.UpdateBound;
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.metrics.GitMetrics.Timer;
+import build.pluto.buildgit.metrics.GitOperation;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
 
 public class GitHandler {
 
+  /**
+   * Opens the repository in directory from the {@link RepositoryPool}. The
+   * returned handle has to be passed to {@link #closeRepository(Git)} after use.
+   */
   private static Git openRepository(File directory) throws GitException {
     try {
-      return Git.open(directory);
+      return new Git(RepositoryPool.getInstance().acquire(directory));
     } catch (IOException e) {
       throw new GitException("Cannot open repository " + directory, e);
     }
   }
 
-  public static void cloneRepository(GitInput input) throws GitException {
+  private static void closeRepository(Git git) {
+    RepositoryPool.getInstance().release(git.getRepository());
+  }
+
+  /**
+   * Clones the repository and checks out the bound. The working tree is only
+   * written once: the clone checks out the branch or tag of the bound right
+   * away and the local branches of branchesToClone are created without
+   * checking them out. If input.fetchBoundOnly is set, only the refs of
+   * {@link #boundRefSpecs(GitInput, String)} get fetched. If
+   * input.mirrorDirectory is set, the objects are fetched into the mirror of
+   * input.url and the clone borrows them from there. If input.cloneSubmodules
+   * is set, the submodules get cloned concurrently by {@link SubmoduleUpdater}.
+   *
+   * A failed clone is retried as input.remoteOperationPolicy allows, after
+   * removing what the failed attempt left in the directory. Clones always
+   * fetch the full history: JGit only supports shallow clones and fetches
+   * since 6.3, which requires Java 11.
+   */
+  public static void cloneRepository(final GitInput input) throws GitException {
+    RepositoryPool.getInstance().invalidate(input.directory);
+    Git git = null;
+    Timer timer = GitMetrics.start(GitOperation.CLONE, input.url);
     try {
-      Git git = Git.cloneRepository()
-          .setURI(input.url)
-          .setDirectory(input.directory)
-          .setCloneSubmodules(input.cloneSubmodules)
-          .call();
-      for (String branchName : input.branchesToClone) {
+      boolean initialized = input.fetchBoundOnly || input.mirrorDirectory != null;
+      if (initialized) {
+        git = Git.init().setDirectory(input.directory).call();
+        fetchIntoEmptyRepository(git, input);
+      } else {
+        final CloneCommand clone = Git.cloneRepository()
+            .setURI(input.url)
+            .setDirectory(input.directory);
+        if (!(input.bound instanceof CommitHashBound)) {
+          clone.setBranch(input.bound.getBound());
+        }
+        git = input.remoteOperationPolicy.execute(input.url, new Attempt<Git, GitAPIException>() {
+          @Override
+          public Git run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+            try {
+              return clone.setProgressMonitor(monitor).setTimeout(timeout).call();
+            } catch (GitAPIException | RuntimeException e) {
+              // the next attempt needs an empty directory again
+              deleteContents(input.directory);
+              throw e;
+            }
+          }
+        });
+      }
+      Repository repo = git.getRepository();
+      for (String branchName : branchesOf(input)) {
+        createBranch(git, branchName);
+      }
+      if (repo.getRef(Constants.R_HEADS + Constants.MASTER) == null
+          && repo.getRef(Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/" + Constants.MASTER) != null) {
+        createBranch(git, Constants.MASTER);
+      }
+      if (initialized) {
+        checkoutIntoEmptyRepository(git, input.bound);
+      } else if (!isBoundCheckedOut(repo, input.bound)) {
         git.checkout()
-            .setCreateBranch(true)
-            .setName(branchName)
-            .setStartPoint("origin/" + branchName)
+            .setName(input.bound.getBound())
             .call();
       }
-      git.checkout()
-          .setName(input.bound.getBound())
-          .call();
-    } catch (GitAPIException e) {
+      if (input.cloneSubmodules) {
+        SubmoduleUpdater.update(repo, null, input.remoteOperationPolicy);
+      }
+      timer.succeeded();
+    } catch (GitAPIException | IOException | URISyntaxException e) {
       throw new GitException("Clone of repository " + input.url + " failed", e);
+    } finally {
+      timer.stop();
+      if (git != null)
+        git.close();
+    }
+  }
+
+  /**
+   * Deletes the files and directories in directory, but not directory.
+   * Failures are ignored.
+   */
+  private static void deleteContents(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      try {
+        FileUtils.delete(file, FileUtils.RECURSIVE | FileUtils.RETRY | FileUtils.SKIP_MISSING);
+      } catch (IOException e) {
+        // the next attempt fails on the leftovers
+      }
+    }
+  }
+
+  /**
+   * Configures the remote of input.url in the freshly initialized repository
+   * and fetches from it, either directly or through the mirror of input.url.
+   */
+  private static void fetchIntoEmptyRepository(Git git, GitInput input) throws GitAPIException, GitException, IOException, URISyntaxException {
+    StoredConfig config = git.getRepository().getConfig();
+    RemoteConfig remote = new RemoteConfig(config, Constants.DEFAULT_REMOTE_NAME);
+    remote.addURI(new URIish(input.url));
+    if (input.fetchBoundOnly) {
+      remote.setFetchRefSpecs(boundRefSpecs(input, Constants.DEFAULT_REMOTE_NAME));
+    } else {
+      remote.addFetchRefSpec(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + Constants.DEFAULT_REMOTE_NAME + "/*"));
+    }
+    remote.update(config);
+    config.save();
+    if (input.mirrorDirectory != null) {
+      fetchThroughMirror(git, input, remote.getFetchRefSpecs(), null);
+    } else {
+      fetch(git, input.url, Constants.DEFAULT_REMOTE_NAME, Collections.<RefSpec> emptyList(), input.remoteOperationPolicy);
+    }
+  }
+
+  /**
+   * Updates the mirror of input.url and fetches the refs of refSpecs from the
+   * mirror, plus all tags unless input.fetchBoundOnly is set. Tags are not
+   * followed automatically here, since the repository already has all their
+   * objects. As the repository uses the objects of the mirror as alternates,
+   * no objects get copied.
+   *
+   * @param advertisedRefs the refs the remote advertised in this sync, or
+   * null if it was not contacted yet.
+   * @return the refs advertised by the remote of input.url.
+   */
+  private static Map<String, Ref> fetchThroughMirror(Git git, GitInput input, List<RefSpec> refSpecs, Map<String, Ref> advertisedRefs) throws GitException, IOException {
+    File mirror = MirrorCache.mirrorOf(input.mirrorDirectory, input.url);
+    advertisedRefs = MirrorCache.update(mirror, input.url, advertisedRefs, input.remoteOperationPolicy);
+    MirrorCache.addAlternate(git.getRepository(), mirror);
+    List<RefSpec> mirrorRefSpecs = new ArrayList<>(refSpecs);
+    if (!input.fetchBoundOnly) {
+      mirrorRefSpecs.add(new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"));
+    }
+    fetch(git, mirror.getAbsolutePath(), mirror.getAbsolutePath(), mirrorRefSpecs, input.remoteOperationPolicy);
+    return advertisedRefs;
+  }
+
+  /**
+   * Points HEAD of a repository without working tree and index to the bound
+   * and checks it out. A checkout would treat the missing index entries as
+   * staged deletions, so this resets instead.
+   */
+  private static void checkoutIntoEmptyRepository(Git git, UpdateBound bound) throws GitAPIException, IOException {
+    Repository repo = git.getRepository();
+    if (bound instanceof BranchBound) {
+      repo.updateRef(Constants.HEAD).link(Constants.R_HEADS + bound.getBound());
+    } else {
+      ObjectId boundId = resolveBoundLocally(repo, bound, Constants.DEFAULT_REMOTE_NAME);
+      if (boundId == null) {
+        throw new IOException(bound.getBound() + " was not fetched");
+      }
+      RefUpdate update = repo.updateRef(Constants.HEAD, true);
+      update.setNewObjectId(boundId);
+      update.forceUpdate();
+    }
+    git.reset()
+        .setMode(ResetCommand.ResetType.HARD)
+        .call();
+  }
+
+  /**
+   * Computes the refspecs that fetch only what a sync of input needs: the
+   * branch or tag of the bound and the branches to clone. Falls back to all
+   * branches if the bound is a commit and no branches are configured.
+   */
+  public static List<RefSpec> boundRefSpecs(GitInput input, String remote) {
+    List<RefSpec> refSpecs = new ArrayList<>();
+    for (String branchName : branchesOf(input)) {
+      refSpecs.add(new RefSpec("+" + Constants.R_HEADS + branchName + ":" + Constants.R_REMOTES + remote + "/" + branchName));
+    }
+    if (input.bound instanceof TagBound) {
+      String tag = Constants.R_TAGS + input.bound.getBound();
+      refSpecs.add(new RefSpec("+" + tag + ":" + tag));
+    }
+    if (refSpecs.isEmpty()) {
+      refSpecs.add(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + remote + "/*"));
+    }
+    return refSpecs;
+  }
+
+  private static Set<String> branchesOf(GitInput input) {
+    Set<String> branches = new LinkedHashSet<>();
+    if (input.bound instanceof BranchBound) {
+      branches.add(input.bound.getBound());
+    }
+    branches.addAll(input.branchesToClone);
+    return branches;
+  }
+
+  private static void createBranch(Git git, String branchName) throws GitAPIException, IOException {
+    if (git.getRepository().getRef(Constants.R_HEADS + branchName) != null) {
+      return;
+    }
+    git.branchCreate()
+        .setName(branchName)
+        .setStartPoint(Constants.DEFAULT_REMOTE_NAME + "/" + branchName)
+        .setUpstreamMode(SetupUpstreamMode.TRACK)
+        .call();
+  }
+
+  private static boolean isCheckedOut(Repository repo, String name) throws IOException {
+    String fullBranch = repo.getFullBranch();
+    if (fullBranch == null) {
+      return false;
+    }
+    if (fullBranch.equals(Constants.R_HEADS + name)) {
+      return true;
+    }
+    // a detached HEAD is stored as the commit hash
+    return ObjectId.isId(fullBranch) && fullBranch.equals(name);
+  }
+
+  private static boolean isBoundCheckedOut(Repository repo, UpdateBound bound) throws IOException {
+    ObjectId head = repo.resolve(Constants.HEAD);
+    ObjectId boundId = repo.resolve(bound.getBound() + "^{commit}");
+    if (head == null || !head.equals(boundId)) {
+      return false;
+    }
+    if (bound instanceof BranchBound) {
+      return (Constants.R_HEADS + bound.getBound()).equals(repo.getFullBranch());
+    }
+    return true;
+  }
+
+  /**
+   * @return true if HEAD of the repository in directory is at boundHash and,
+   * for a branch bound, the branch is checked out.
+   */
+  public static boolean isAtBound(File directory, UpdateBound bound, String boundHash) throws GitException {
+    Git git = openRepository(directory);
+    try {
+      Repository repo = git.getRepository();
+      ObjectId head = repo.resolve(Constants.HEAD);
+      if (head == null || !head.name().equals(boundHash)) {
+        return false;
+      }
+      if (bound instanceof BranchBound) {
+        return (Constants.R_HEADS + bound.getBound()).equals(repo.getFullBranch());
+      }
+      return true;
+    } catch (IOException e) {
+      throw new GitException("Cannot read HEAD of " + directory, e);
+    } finally {
+      closeRepository(git);
+    }
+  }
+
+  public static boolean hasCommit(File directory, String hash) throws GitException {
+    Git git = openRepository(directory);
+    try {
+      ObjectId id = ObjectId.fromString(hash);
+      return git.getRepository().hasObject(id);
+    } catch (IllegalArgumentException e) {
+      return false;
+    } finally {
+      closeRepository(git);
     }
   }
 
+  /**
+   * Checks out the branch or commit hash. Nothing is done if it is checked
+   * out already, since a checkout compares the whole index and working tree.
+   */
   public static void checkout(File directory, String hash) throws GitException {
     Git git = openRepository(directory);
+    Timer timer = GitMetrics.start(GitOperation.CHECKOUT, directory.getPath());
     try {
-      git.checkout()
-          .setName(hash)
-          .call();
-    } catch (GitAPIException e) {
+      if (!isCheckedOut(git.getRepository(), hash)) {
+        git.checkout()
+            .setName(hash)
+            .call();
+      }
+      timer.succeeded();
+    } catch (GitAPIException | IOException e) {
       throw new GitException("Checkout in directory " + directory + " failed", e);
+    } finally {
+      timer.stop();
+      closeRepository(git);
     }
   }
 
+  /**
+   * Fetches from the remote of input.url and merges the advertised HEAD of the
+   * remote, or, if input.fetchBoundOnly is set, fetches only the refs of the
+   * bound and merges the bound. If input.mirrorDirectory is set, the mirror
+   * of input.url gets updated and the refs are fetched from the mirror. If
+   * input.cloneSubmodules is set, the submodules whose gitlink changed get
+   * updated.
+   */
   public static void pull(GitInput input) throws GitException {
-    FetchResult fetchResult = fetch(input.directory, input.url);
-    Ref ref = fetchResult.getAdvertisedRef("HEAD");
-    MergeResult mergeResult = merge(input, ref);
-    if (!mergeResult.getMergeStatus().isSuccessful()) {
-      throw new GitException("Merge of " + ref + " in " + input.directory + " failed");
+    if (input.mirrorDirectory != null) {
+      pull(input, null);
+      return;
+    }
+    try (GitRemoteSession session = GitRemoteSession.open(input.directory, input.url, input.remoteOperationPolicy)) {
+      pull(input, session);
     }
   }
 
-  private static FetchResult fetch(File directory, String url) throws GitException {
+  /**
+   * Pulls like {@link #pull(GitInput)}, but fetches over the connection of
+   * session and uses its advertisement.
+   *
+   * @param session a session of input.url opened for input.directory, or null
+   * if input.mirrorDirectory is set.
+   */
+  public static void pull(GitInput input, GitRemoteSession session) throws GitException {
+    Git git = openRepository(input.directory);
     try {
-      String remoteOfUrl = getRemoteOfUrl(directory, url);
-      Git git = openRepository(directory);
-      return git.fetch()
-          .setRemote(remoteOfUrl)
-          .call();
+      String remote = remoteOf(git, input.url);
+      fetch(git, input, remote, session);
+      ObjectId target = mergeTargetOf(git, input, remote);
+      if (target == null) {
+        throw new GitException("Merge in " + input.directory + " failed, " + input.bound.getBound() + " was not fetched");
+      }
+      mergeAndUpdateSubmodules(git, input, target);
+    } catch (IOException | URISyntaxException e) {
+      throw new GitException("Pull of " + input.url + " in " + input.directory + " failed", e);
+    } finally {
+      closeRepository(git);
+    }
+  }
+
+  /**
+   * Fetches the refs a pull of input would fetch without merging them, e.g.
+   * ahead of the build that merges them with
+   * {@link #mergeFetched(GitInput, Map)}.
+   *
+   * @return the refs advertised by the remote.
+   */
+  public static Map<String, Ref> fetch(GitInput input) throws GitException {
+    Git git = openRepository(input.directory);
+    GitRemoteSession session = null;
+    try {
+      if (input.mirrorDirectory == null) {
+        session = GitRemoteSession.open(input.directory, input.url, input.remoteOperationPolicy);
+      }
+      return fetch(git, input, remoteOf(git, input.url), session);
+    } catch (IOException | URISyntaxException e) {
+      throw new GitException("Fetch of " + input.url + " in " + input.directory + " failed", e);
+    } finally {
+      if (session != null)
+        session.close();
+      closeRepository(git);
+    }
+  }
+
+  /**
+   * Merges what a pull of input would merge, given the refs the remote
+   * advertised when it was fetched last, without contacting the remote.
+   *
+   * @return false if the bound was not fetched yet or not at the hash
+   * advertised for it, in which case nothing was changed.
+   */
+  public static boolean mergeFetched(GitInput input, Map<String, Ref> advertisedRefs) throws GitException {
+    Git git = openRepository(input.directory);
+    try {
+      ObjectId target = mergeTargetOf(git, input, remoteOf(git, input.url));
+      if (target == null || !git.getRepository().hasObject(target) || !target.name().equals(getHashOfBound(advertisedRefs, input.bound))) {
+        return false;
+      }
+      mergeAndUpdateSubmodules(git, input, target);
+      return true;
+    } catch (IOException e) {
+      throw new GitException("Merge in " + input.directory + " failed", e);
+    } finally {
+      closeRepository(git);
+    }
+  }
+
+  private static String remoteOf(Git git, String url) {
+    String remote = getRemoteOfUrl(git, url);
+    return remote == null ? Constants.DEFAULT_REMOTE_NAME : remote;
+  }
+
+  private static Map<String, Ref> fetch(Git git, GitInput input, String remote, GitRemoteSession session) throws GitException, IOException, URISyntaxException {
+    List<RefSpec> refSpecs = input.fetchBoundOnly ? boundRefSpecs(input, remote) : fetchRefSpecsOf(git, input, remote);
+    if (input.mirrorDirectory != null) {
+      return fetchThroughMirror(git, input, refSpecs, session == null ? null : session.getRefs());
+    }
+    session.fetch(refSpecs);
+    return session.getRefs();
+  }
+
+  /**
+   * @return the bound as fetched from remote: the tracking ref of a branch,
+   * the tag or the commit.
+   */
+  private static ObjectId mergeTargetOf(Git git, GitInput input, String remote) throws IOException {
+    return resolveBoundLocally(git.getRepository(), input.bound, remote);
+  }
+
+  /**
+   * Merges target, as a fast-forward of only the changed paths if possible.
+   */
+  private static void mergeAndUpdateSubmodules(Git git, GitInput input, ObjectId target) throws GitException, IOException {
+    ObjectId oldHead = git.getRepository().resolve(Constants.HEAD);
+    if (!fastForward(git, input, target)) {
+      MergeResult mergeResult = merge(git, input, target);
+      if (!mergeResult.getMergeStatus().isSuccessful()) {
+        throw new GitException("Merge of " + target.name() + " in " + input.directory + " failed");
+      }
+    }
+    if (input.cloneSubmodules) {
+      SubmoduleUpdater.update(git.getRepository(), oldHead, input.remoteOperationPolicy);
+    }
+  }
+
+  /**
+   * @return the configured fetch refspecs of remote, or the default refspec
+   * of a clone if there are none, plus the tag of a tag bound.
+   */
+  private static List<RefSpec> fetchRefSpecsOf(Git git, GitInput input, String remote) throws URISyntaxException {
+    List<RefSpec> refSpecs = new ArrayList<>(new RemoteConfig(git.getRepository().getConfig(), remote).getFetchRefSpecs());
+    if (refSpecs.isEmpty()) {
+      refSpecs.add(new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_REMOTES + remote + "/*"));
+    }
+    if (input.bound instanceof TagBound) {
+      String tag = Constants.R_TAGS + input.bound.getBound();
+      refSpecs.add(new RefSpec("+" + tag + ":" + tag));
+    }
+    return refSpecs;
+  }
+
+  /**
+   * @param refSpecs the refs to fetch, the configured refspecs of the remote
+   * are used if empty.
+   */
+  private static FetchResult fetch(final Git git, String url, final String remote, final List<RefSpec> refSpecs, RemoteOperationPolicy policy) throws GitException {
+    RemoteHealth health = RemoteHealth.getInstance();
+    if (!health.allowRequest(url)) {
+      throw new GitException(url + " is not contacted, it was unreachable recently");
+    }
+    Timer timer = GitMetrics.start(GitOperation.FETCH, url);
+    try {
+      FetchResult result = policy.execute(url, new Attempt<FetchResult, GitAPIException>() {
+        @Override
+        public FetchResult run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+          return git.fetch()
+              .setRemote(remote)
+              .setRefSpecs(refSpecs)
+              .setProgressMonitor(monitor)
+              .setTimeout(timeout)
+              .call();
+        }
+      });
+      health.recordSuccess(url);
+      timer.succeeded();
+      return result;
     } catch (GitAPIException e) {
+      health.recordFailure(url, e);
       throw new GitException("Fetch of repository " + url + " failed", e);
+    } finally {
+      timer.stop();
     }
   }
 
-  private static String getRemoteOfUrl(File directory, String url) throws GitException {
-    Git git = openRepository(directory);
+  /**
+   * Resolves the bound against the refs fetched from remote.
+   */
+  private static ObjectId resolveBoundLocally(Repository repo, UpdateBound bound, String remote) throws IOException {
+    if (bound instanceof BranchBound) {
+      return repo.resolve(Constants.R_REMOTES + remote + "/" + bound.getBound() + "^{commit}");
+    }
+    if (bound instanceof TagBound) {
+      return repo.resolve(Constants.R_TAGS + bound.getBound() + "^{commit}");
+    }
+    return repo.resolve(bound.getBound() + "^{commit}");
+  }
+
+  private static String getRemoteOfUrl(Git git, String url) {
     StoredConfig config = git.getRepository().getConfig();
     Set<String> remotes = config.getSubsections("remote");
     for (String remote : remotes) {
       String remoteUrl = config.getString("remote", remote, "url");
-      if (remoteUrl.equals(url)) {
+      if (url.equals(remoteUrl)) {
         return remote;
       }
     }
     return null;
   }
 
-  private static MergeResult merge(GitInput input, Ref ref) throws GitException {
+  /**
+   * @return true if HEAD was fast-forwarded to target by
+   * {@link IncrementalCheckout}, false if it has to be merged.
+   */
+  private static boolean fastForward(Git git, GitInput input, ObjectId target) throws IOException {
+    if (input.ffMode == FastForwardMode.NO_FF || input.squashCommit) {
+      return false;
+    }
+    Timer timer = GitMetrics.start(GitOperation.MERGE, input.directory.getPath());
+    try {
+      boolean fastForwarded = IncrementalCheckout.fastForward(git.getRepository(), target);
+      if (fastForwarded)
+        timer.succeeded();
+      return fastForwarded;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private static MergeResult merge(Git git, GitInput input, ObjectId target) throws GitException {
+    Timer timer = GitMetrics.start(GitOperation.MERGE, input.directory.getPath());
     try {
-      Git git = openRepository(input.directory);
       MergeCommand merge = git.merge();
-      merge.include(ref);
+      merge.include(target);
       merge.setCommit(input.createMergeCommit);
       merge.setSquash(input.squashCommit);
       merge.setFastForward(input.ffMode.getMode());
       merge.setStrategy(input.mergeStrategy.getStrategy());
-      return merge.call();
+      MergeResult result = merge.call();
+      if (result.getMergeStatus().isSuccessful())
+        timer.succeeded();
+      return result;
     } catch (GitAPIException e) {
-      throw new GitException("Merge of " + ref + " in " + input.directory + " failed", e);
+      throw new GitException("Merge of " + target.name() + " in " + input.directory + " failed", e);
+    } finally {
+      timer.stop();
     }
   }
 
   public static void add(File directory, String filePattern) throws GitException {
+    Git git = openRepository(directory);
     try {
-      Git git = openRepository(directory);
       git.add()
           .addFilepattern(filePattern)
           .call();
     } catch (GitAPIException e) {
       throw new GitException("Git add of " + filePattern + " in " + directory + " failed", e);
+    } finally {
+      closeRepository(git);
     }
   }
 
   public static void commit(File directory, String message) throws GitException {
+    Git git = openRepository(directory);
     try {
-      Git git = openRepository(directory);
       git.commit()
           .setMessage(message)
           .call();
     } catch (GitAPIException e) {
       throw new GitException("Commit " + message + " in " + directory + " failed", e);
+    } finally {
+      closeRepository(git);
     }
   }
 
   public static boolean isUrlSet(File directory, String url) throws GitException {
     Git git = openRepository(directory);
-    if (git == null) {
-      return false;
-    }
-    StoredConfig config = git.getRepository().getConfig();
-    Set<String> remotes = config.getSubsections("remote");
-    boolean foundRemote = false;
-    for (String remote : remotes) {
-      String configUrl = config.getString("remote", remote, "url");
-      if (configUrl.equals(url)) {
-        foundRemote = true;
-      }
+    try {
+      return getRemoteOfUrl(git, url) != null;
+    } finally {
+      closeRepository(git);
     }
-    return foundRemote;
   }
 
   public static boolean isUrlAccessible(String url) {
     try {
-      Git.lsRemoteRepository().setRemote(url).call();
+      RefAdvertisementCache.getInstance().getRefs(url);
     } catch (GitAPIException e) {
       return false;
     }
@@ -175,19 +644,56 @@ public class GitHandler {
   }
 
   public static void resetRepoToCommit(File directory, String commitHash) throws GitException {
+    Git git = openRepository(directory);
+    Timer timer = GitMetrics.start(GitOperation.RESET, directory.getPath());
     try {
-      Git git = openRepository(directory);
       git.reset().setMode(ResetCommand.ResetType.HARD).setRef(commitHash).call();
+      timer.succeeded();
     } catch (GitAPIException e) {
       throw new GitException("Ref " + commitHash + " does not exist", e);
+    } finally {
+      timer.stop();
+      closeRepository(git);
     }
   }
 
   public static String getHashOfHEAD(File directory) throws IOException, GitException {
     Git git = openRepository(directory);
-    Ref headRef = git.getRepository().getRef("HEAD");
-    ObjectId objectId = headRef.getObjectId();
-    return ObjectId.toString(objectId);
+    try {
+      Ref headRef = git.getRepository().getRef("HEAD");
+      ObjectId objectId = headRef.getObjectId();
+      return ObjectId.toString(objectId);
+    } finally {
+      closeRepository(git);
+    }
+  }
+
+  /**
+   * Compares the trees of two commits, restricted to the paths accepted by
+   * filter. Only the object database is read, subtrees with the same id in
+   * both commits are not entered.
+   *
+   * @return the added, modified and deleted files, renames are not detected.
+   * @see PathFilters
+   */
+  public static List<DiffEntry> getChangedPaths(File directory, String oldCommit, String newCommit, TreeFilter filter) throws GitException {
+    Git git = openRepository(directory);
+    Repository repo = git.getRepository();
+    Timer timer = GitMetrics.start(GitOperation.DIFF, directory.getPath());
+    try (RevWalk revWalk = new RevWalk(repo); TreeWalk treeWalk = new TreeWalk(repo)) {
+      treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(oldCommit)).getTree());
+      treeWalk.addTree(revWalk.parseCommit(ObjectId.fromString(newCommit)).getTree());
+      treeWalk.setRecursive(true);
+      treeWalk.setFilter(filter == TreeFilter.ALL ? TreeFilter.ANY_DIFF : AndTreeFilter.create(filter, TreeFilter.ANY_DIFF));
+      List<DiffEntry> changes = DiffEntry.scan(treeWalk);
+      timer.succeeded();
+      return changes;
+    } catch (IOException | IllegalArgumentException e) {
+      throw new GitException("Comparison of " + oldCommit + " and " + newCommit + " in " + directory + " failed", e);
+    } finally {
+      timer.stop();
+      closeRepository(git);
+    }
   }
 
   public static String getHashOfRemoteHEAD(String url, String branch) {
@@ -196,34 +702,114 @@ public class GitHandler {
   }
 
   public static String getHashOfBound(String url, UpdateBound bound) {
+    return getHashesOfBounds(url, Collections.singleton(bound)).get(bound);
+  }
+
+  /**
+   * Resolves all bounds of the remote at url with a single ls-remote.
+   *
+   * @return the hash of every bound, or null if it could not be resolved.
+   */
+  public static Map<UpdateBound, String> getHashesOfBounds(String url, Collection<? extends UpdateBound> bounds) {
+    Map<String, Collection<? extends UpdateBound>> boundsByUrl = new HashMap<>();
+    boundsByUrl.put(url, bounds);
+    return getHashesOfBounds(boundsByUrl);
+  }
+
+  /**
+   * Resolves the bounds of several remotes with one ls-remote per url. Branch
+   * and tag names are matched exactly against refs/heads/* and refs/tags/*
+   * and annotated tags resolve to the commit they point to.
+   *
+   * @return the hash of every bound, or null if it could not be resolved.
+   */
+  public static Map<UpdateBound, String> getHashesOfBounds(Map<String, ? extends Collection<? extends UpdateBound>> boundsByUrl) {
+    Map<UpdateBound, String> hashes = new HashMap<>();
+    for (Map.Entry<String, ? extends Collection<? extends UpdateBound>> entry : boundsByUrl.entrySet()) {
+      Map<String, Ref> refs = null;
+      for (UpdateBound bound : entry.getValue()) {
+        if (bound instanceof CommitHashBound) {
+          hashes.put(bound, bound.getBoundHash());
+          continue;
+        }
+        if (refs == null) {
+          try {
+            refs = RefAdvertisementCache.getInstance().getRefs(entry.getKey());
+          } catch (GitAPIException e) {
+            refs = Collections.emptyMap();
+          }
+        }
+        hashes.put(bound, getHashOfBound(refs, bound));
+      }
+    }
+    return hashes;
+  }
+
+  /**
+   * Resolves the bound against the refs advertised by its remote.
+   *
+   * @return the hash of the bound, or null if it is not advertised.
+   */
+  public static String getHashOfBound(Map<String, Ref> refs, UpdateBound bound) {
     if (bound instanceof CommitHashBound) {
       return bound.getBoundHash();
     }
-    String refName = bound.getBound();
-    try {
-      Collection<Ref> refs = Git.lsRemoteRepository().setRemote(url).setHeads(true).setTags(true).call();
-      for (Ref ref : refs) {
-        boolean isCorrectRef = ref.getName().contains(refName);
-        if (isCorrectRef) {
-          ObjectId objectId = ref.getPeeledObjectId();
-          if (objectId == null) {
-            objectId = ref.getObjectId();
-          }
-          return ObjectId.toString(objectId);
+    String name = bound.getBound();
+    String[] candidates;
+    if (bound instanceof TagBound) {
+      candidates = new String[] { Constants.R_TAGS + name, Constants.R_HEADS + name, name };
+    } else {
+      candidates = new String[] { Constants.R_HEADS + name, Constants.R_TAGS + name, name };
+    }
+    for (String candidate : candidates) {
+      Ref ref = refs.get(candidate);
+      if (ref != null) {
+        ObjectId objectId = ref.getPeeledObjectId();
+        if (objectId == null) {
+          objectId = ref.getObjectId();
         }
+        return ObjectId.toString(objectId);
       }
-    } catch (GitAPIException e) {
-      return null;
     }
     return null;
   }
 
-  public static List<File> getNotIgnoredFilesOfRepo(File directory) throws GitException {
+  /**
+   * Receives the paths walked by
+   * {@link GitHandler#visitNotIgnoredFilesOfRepo(File, PathVisitor)}.
+   */
+  public static interface PathVisitor {
+    /**
+     * @param path holds the UTF-8 encoded path of a file relative to the
+     * walked directory in its first length bytes. The buffer gets reused
+     * for the next path, so it must not be retained.
+     */
+    public void visit(byte[] path, int length) throws IOException;
+  }
+
+  public static List<File> getNotIgnoredFilesOfRepo(final File directory) throws GitException {
+    final List<File> foundFiles = new ArrayList<>();
+    visitNotIgnoredFilesOfRepo(directory, new PathVisitor() {
+      @Override
+      public void visit(byte[] path, int length) {
+        foundFiles.add(new File(directory, RawParseUtils.decode(path, 0, length)));
+      }
+    });
+    return foundFiles;
+  }
+
+  /**
+   * Walks the files of the working tree that are not ignored, including the
+   * files of cloned submodules, and hands their paths to visitor while
+   * walking. Unlike {@link #getNotIgnoredFilesOfRepo(File)}, no object is
+   * allocated per file: visitor gets the path buffer of the walk. Callers
+   * that need to keep the paths can collect them in a {@link PathTable}.
+   */
+  public static void visitNotIgnoredFilesOfRepo(File directory, PathVisitor visitor) throws GitException {
     Git git = openRepository(directory);
-    Repository repo = null;
-    repo = git.getRepository();
-    List<File> foundFiles = new ArrayList<>();
+    Repository repo = git.getRepository();
     TreeWalk treeWalk = null;
+    Timer timer = GitMetrics.start(GitOperation.FILE_WALK, directory.getPath());
     try {
       treeWalk = new TreeWalk(repo);
       FileTreeIterator tree = new FileTreeIterator(repo);
@@ -231,20 +817,178 @@ public class GitHandler {
       treeWalk.setRecursive(false);
       while (treeWalk.next()) {
         WorkingTreeIterator iterator = treeWalk.getTree(0, WorkingTreeIterator.class);
-        if (!iterator.isEntryIgnored())
-          if (treeWalk.isSubtree()) {
-            treeWalk.enterSubtree();
-          } else {
-            File file = new File(directory, treeWalk.getPathString());
-            foundFiles.add(file);
+        if (iterator.isEntryIgnored())
+          continue;
+        if (treeWalk.isSubtree()) {
+          treeWalk.enterSubtree();
+          continue;
+        }
+        byte[] path = iterator.getEntryPathBuffer();
+        int length = iterator.getEntryPathLength();
+        if (iterator.getEntryFileMode() == FileMode.GITLINK) {
+          File submodule = new File(directory, treeWalk.getPathString());
+          if (SubmoduleUpdater.isCloned(submodule)) {
+            visitNotIgnoredFilesOfRepo(submodule, new PrefixedPathVisitor(path, length, visitor));
+            continue;
           }
+        }
+        visitor.visit(path, length);
       }
+      timer.succeeded();
     } catch (IOException e) {
       throw new GitException("Listing of non-ignored files in " + directory + " failed", e);
     } finally {
+      timer.stop();
       if (treeWalk != null)
         treeWalk.close();
+      closeRepository(git);
     }
+  }
+
+  /**
+   * Lists the files tracked in the index of the repository, which does not
+   * touch the working tree. If includeUntracked is true, untracked files that
+   * are not ignored get listed as well, which requires walking the untracked
+   * parts of the working tree. The files of cloned submodules are listed as
+   * well.
+   */
+  public static List<File> getTrackedFilesOfRepo(File directory, boolean includeUntracked) throws GitException {
+    return getTrackedFilesOfRepo(directory, includeUntracked, Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+
+  /**
+   * Lists the tracked files like {@link #getTrackedFilesOfRepo(File, boolean)},
+   * restricted to includePaths without excludePaths. Paths inside a
+   * submodule restrict the listed files of that submodule.
+   *
+   * @see #visitTrackedFilesOfRepo
+   */
+  public static List<File> getTrackedFilesOfRepo(final File directory, boolean includeUntracked, Collection<String> includePaths, Collection<String> excludePaths) throws GitException {
+    final List<File> foundFiles = new ArrayList<>();
+    visitTrackedFilesOfRepo(directory, includeUntracked, includePaths, excludePaths, new PathVisitor() {
+      @Override
+      public void visit(byte[] path, int length) {
+        foundFiles.add(new File(directory, RawParseUtils.decode(path, 0, length)));
+      }
+    });
     return foundFiles;
   }
+
+  /**
+   * Walks the files listed by
+   * {@link #getTrackedFilesOfRepo(File, boolean, Collection, Collection)} and
+   * hands their paths to visitor like
+   * {@link #visitNotIgnoredFilesOfRepo(File, PathVisitor)}. Without untracked
+   * files, the paths are read from the {@link FileManifest} of HEAD if there
+   * is a valid one and stored as one otherwise.
+   *
+   * @see PathFilters
+   */
+  public static void visitTrackedFilesOfRepo(File directory, boolean includeUntracked, Collection<String> includePaths, Collection<String> excludePaths, PathVisitor visitor) throws GitException {
+    String manifestKey = PathFilters.keyOf(includePaths, excludePaths);
+    Git git = openRepository(directory);
+    Repository repo = git.getRepository();
+    PathTable paths = new PathTable();
+    BitSet submodules = new BitSet();
+    TreeWalk treeWalk = null;
+    Timer timer = GitMetrics.start(GitOperation.FILE_WALK, directory.getPath());
+    try {
+      if (!includeUntracked) {
+        FileManifest manifest = FileManifest.read(repo, manifestKey);
+        if (manifest != null) {
+          for (int i = 0; i < manifest.size(); i++) {
+            byte[] path = manifest.getRawPath(i);
+            if (!manifest.isSubmodule(i))
+              visitor.visit(path, path.length);
+            else
+              visitSubmodule(directory, manifest.getPath(i), false, includePaths, excludePaths, path, path.length, visitor);
+          }
+          timer.succeeded();
+          return;
+        }
+      }
+      treeWalk = new TreeWalk(repo);
+      treeWalk.addTree(new DirCacheIterator(repo.readDirCache()));
+      if (includeUntracked)
+        treeWalk.addTree(new FileTreeIterator(repo));
+      treeWalk.setRecursive(!includeUntracked);
+      treeWalk.setFilter(PathFilters.create(includePaths, excludePaths));
+      while (treeWalk.next()) {
+        AbstractTreeIterator iterator = treeWalk.getTree(0, DirCacheIterator.class);
+        if (iterator == null) {
+          WorkingTreeIterator workingTreeIterator = treeWalk.getTree(1, WorkingTreeIterator.class);
+          if (workingTreeIterator.isEntryIgnored())
+            continue;
+          iterator = workingTreeIterator;
+        }
+        byte[] path = iterator.getEntryPathBuffer();
+        int length = iterator.getEntryPathLength();
+        if (iterator instanceof DirCacheIterator && iterator.getEntryFileMode() == FileMode.GITLINK) {
+          if (!includeUntracked) {
+            submodules.set(paths.size());
+            paths.add(path, length);
+          }
+          visitSubmodule(directory, treeWalk.getPathString(), includeUntracked, includePaths, excludePaths, path, length, visitor);
+          continue;
+        }
+        if (treeWalk.isSubtree()) {
+          treeWalk.enterSubtree();
+        } else {
+          if (!includeUntracked)
+            paths.add(path, length);
+          visitor.visit(path, length);
+        }
+      }
+      if (!includeUntracked)
+        FileManifest.write(repo, manifestKey, paths, submodules);
+      timer.succeeded();
+    } catch (IOException e) {
+      throw new GitException("Listing of tracked files in " + directory + " failed", e);
+    } finally {
+      timer.stop();
+      if (treeWalk != null)
+        treeWalk.close();
+      closeRepository(git);
+    }
+  }
+
+  /**
+   * Hands the files of the submodule at submodulePath in directory to visitor
+   * if it is cloned, prefixed with path, the UTF-8 encoded submodulePath.
+   * Include and exclude paths below the submodule restrict its files.
+   */
+  private static void visitSubmodule(File directory, String submodulePath, boolean includeUntracked, Collection<String> includePaths, Collection<String> excludePaths, byte[] path, int length, PathVisitor visitor) throws GitException {
+    File submodule = new File(directory, submodulePath);
+    if (!SubmoduleUpdater.isCloned(submodule))
+      return;
+    // an include path of the submodule or a parent includes all its files
+    List<String> submoduleIncludePaths = PathFilters.isExcluded(submodulePath, includePaths) ? Collections.<String>emptyList() : PathFilters.pathsBelow(submodulePath, includePaths);
+    List<String> submoduleExcludePaths = PathFilters.pathsBelow(submodulePath, excludePaths);
+    visitTrackedFilesOfRepo(submodule, includeUntracked, submoduleIncludePaths, submoduleExcludePaths, new PrefixedPathVisitor(path, length, visitor));
+  }
+
+  /**
+   * Prepends the path of a submodule to the paths walked in the submodule,
+   * reusing one buffer.
+   */
+  private static class PrefixedPathVisitor implements PathVisitor {
+    private final int prefixLength;
+    private final PathVisitor visitor;
+    private byte[] buffer;
+
+    private PrefixedPathVisitor(byte[] prefix, int length, PathVisitor visitor) {
+      this.prefixLength = length + 1;
+      this.visitor = visitor;
+      this.buffer = Arrays.copyOf(prefix, prefixLength + 256);
+      buffer[length] = '/';
+    }
+
+    @Override
+    public void visit(byte[] path, int length) throws IOException {
+      if (buffer.length < prefixLength + length)
+        buffer = Arrays.copyOf(buffer, 2 * (prefixLength + length));
+      System.arraycopy(path, 0, buffer, prefixLength, length);
+      visitor.visit(buffer, prefixLength + length);
+    }
+  }
 }
@@ -0,0 +1,254 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jgit.lib.Ref;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+
+/**
+ * Background service that periodically fetches the remotes of all tracked
+ * repositories, so that a synchronization at build time finds the commits it
+ * needs locally and does not have to wait for the network.
+ *
+ * Repositories get tracked when they are synchronized by
+ * {@link build.pluto.buildgit.GitRemoteSynchronizer}, with the input of that
+ * synchronization. Every round fetches like a pull of the tracked input would, but
+ * does not merge. The refs the remote advertised with the last successful
+ * fetch stay valid for {@link #getMaximumAge()} and are used by the
+ * synchronization instead of contacting the remote. The service is off by
+ * default and runs on a single daemon thread once {@link #start(long)} was
+ * called.
+ */
+public class GitPrefetchService {
+
+  private static final GitPrefetchService instance = new GitPrefetchService();
+
+  public static GitPrefetchService getInstance() {
+    return instance;
+  }
+
+  private static class Prefetch {
+    private final Map<String, Ref> refs;
+    private final long fetchedAt;
+
+    private Prefetch(Map<String, Ref> refs, long fetchedAt) {
+      this.refs = refs;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  /**
+   * A lock that is kept while a thread holds or waits for it.
+   */
+  private static class DirectoryLock {
+    private final ReentrantLock lock = new ReentrantLock();
+    private int users;
+  }
+
+  private final Map<File, GitInput> tracked = new LinkedHashMap<>();
+  private final Map<File, Prefetch> prefetches = new HashMap<>();
+  private final Map<File, DirectoryLock> locks = new HashMap<>();
+  private ScheduledExecutorService executor;
+  private long maximumAge;
+
+  GitPrefetchService() {
+  }
+
+  /**
+   * Tracks the repository of input, replacing an input tracked for the same
+   * directory before.
+   */
+  public synchronized void register(GitInput input) {
+    File key = input.directory.getAbsoluteFile();
+    GitInput old = tracked.put(key, input);
+    if (old != null && !old.url.equals(input.url)) {
+      prefetches.remove(key);
+    }
+  }
+
+  public synchronized void unregister(File directory) {
+    File key = directory.getAbsoluteFile();
+    tracked.remove(key);
+    prefetches.remove(key);
+  }
+
+  public synchronized List<GitInput> getTracked() {
+    return new ArrayList<>(tracked.values());
+  }
+
+  /**
+   * Fetches the tracked repositories every intervalMillis milliseconds, with
+   * the first round starting right away. Fetched refs stay valid for twice
+   * the interval.
+   */
+  public synchronized void start(long intervalMillis) {
+    if (intervalMillis <= 0)
+      throw new IllegalArgumentException("intervalMillis has to be positive");
+    stop();
+    maximumAge = 2 * intervalMillis;
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "pluto-git-prefetch");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        prefetchAll();
+      }
+    }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops fetching in the background and forgets all fetched refs. The
+   * tracked repositories stay tracked.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    prefetches.clear();
+  }
+
+  public synchronized boolean isRunning() {
+    return executor != null;
+  }
+
+  /**
+   * @return how long the refs of a fetch stay valid in milliseconds.
+   */
+  public synchronized long getMaximumAge() {
+    return maximumAge;
+  }
+
+  /**
+   * Fetches all tracked repositories once. Repositories that are being
+   * synchronized right now are skipped, and failed fetches are retried in the
+   * next round. Repositories whose directory was deleted are not tracked
+   * anymore.
+   */
+  public void prefetchAll() {
+    for (GitInput input : getTracked()) {
+      if (Thread.currentThread().isInterrupted())
+        return;
+      if (!input.directory.exists())
+        forgetDeleted(input.directory);
+      else
+        prefetch(input);
+    }
+  }
+
+  /**
+   * Stops tracking directory if it does not exist and is not locked by a
+   * synchronization, which may be about to clone into it.
+   */
+  private synchronized void forgetDeleted(File directory) {
+    if (!directory.exists() && !locks.containsKey(directory.getAbsoluteFile()))
+      unregister(directory);
+  }
+
+  /**
+   * Fetches the repository of input once.
+   *
+   * @return false if the repository was skipped or the fetch failed.
+   */
+  public boolean prefetch(GitInput input) {
+    if (!GitHandler.isRepo(input.directory))
+      return false;
+    if (!tryLock(input.directory))
+      return false;
+    try {
+      Map<String, Ref> refs = GitHandler.fetch(input);
+      synchronized (this) {
+        File key = input.directory.getAbsoluteFile();
+        GitInput current = tracked.get(key);
+        if (current != null && current.url.equals(input.url))
+          prefetches.put(key, new Prefetch(refs, System.nanoTime()));
+      }
+      return true;
+    } catch (GitException e) {
+      return false;
+    } finally {
+      unlock(input.directory);
+    }
+  }
+
+  /**
+   * @return the refs url advertised when the repository in directory was
+   * fetched by the running service, or null if it was not fetched from url
+   * within {@link #getMaximumAge()}.
+   */
+  public synchronized Map<String, Ref> getPrefetchedRefs(File directory, String url) {
+    if (executor == null)
+      return null;
+    File key = directory.getAbsoluteFile();
+    Prefetch prefetch = prefetches.get(key);
+    GitInput input = tracked.get(key);
+    if (prefetch == null || input == null || !input.url.equals(url))
+      return null;
+    if (System.nanoTime() - prefetch.fetchedAt >= TimeUnit.MILLISECONDS.toNanos(maximumAge)) {
+      prefetches.remove(key);
+      return null;
+    }
+    return prefetch.refs;
+  }
+
+  /**
+   * Locks the repository in directory while it gets changed, so that it is
+   * not fetched into at the same time. Has to be released by
+   * {@link #unlock(File)}.
+   */
+  public void lock(File directory) {
+    acquire(directory).lock.lock();
+  }
+
+  /**
+   * @return true if the repository in directory was locked like by
+   * {@link #lock(File)}, false if it is locked by another thread.
+   */
+  public boolean tryLock(File directory) {
+    DirectoryLock lock = acquire(directory);
+    if (lock.lock.tryLock())
+      return true;
+    release(directory);
+    return false;
+  }
+
+  public synchronized void unlock(File directory) {
+    locks.get(directory.getAbsoluteFile()).lock.unlock();
+    release(directory);
+  }
+
+  private synchronized DirectoryLock acquire(File directory) {
+    File key = directory.getAbsoluteFile();
+    DirectoryLock lock = locks.get(key);
+    if (lock == null) {
+      lock = new DirectoryLock();
+      locks.put(key, lock);
+    }
+    lock.users++;
+    return lock;
+  }
+
+  private synchronized void release(File directory) {
+    File key = directory.getAbsoluteFile();
+    if (--locks.get(key).users == 0)
+      locks.remove(key);
+  }
+}
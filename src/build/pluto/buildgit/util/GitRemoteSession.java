@@ -0,0 +1,293 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.TagOpt;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.bound.UpdateBound;
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.metrics.GitMetrics.Timer;
+import build.pluto.buildgit.metrics.GitOperation;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
+
+/**
+ * One connection to a remote repository. The connection is opened once, its
+ * ref advertisement answers whether the remote is accessible and what the
+ * bounds resolve to, and the same connection negotiates the fetch. This saves
+ * the handshakes of separate ls-remote and fetch commands.
+ *
+ * A session can fetch at most once and has to be closed after use. Its
+ * outcome is reported to {@link RemoteHealth} once it fetched or, without a
+ * fetch, when it is closed, so that a remote that drops the connection during
+ * the fetch counts as unreachable.
+ */
+public class GitRemoteSession implements AutoCloseable {
+
+  private final String url;
+  private final Repository repository;
+  private final boolean pooled;
+  private final Transport transport;
+  private final FetchConnection connection;
+  private final Map<String, Ref> refs;
+  private final RemoteOperationPolicy policy;
+  private boolean fetched = false;
+  private boolean healthReported = false;
+
+  private GitRemoteSession(String url, RemoteOperationPolicy policy, Repository repository, boolean pooled, Transport transport, FetchConnection connection) {
+    this.url = url;
+    this.policy = policy;
+    this.repository = repository;
+    this.pooled = pooled;
+    this.transport = transport;
+    this.connection = connection;
+    this.refs = RefAdvertisementCache.getInstance().put(url, connection.getRefs());
+  }
+
+  /**
+   * Connects to the remote at url and reads its ref advertisement. The
+   * session cannot fetch.
+   */
+  public static GitRemoteSession open(String url) throws GitException {
+    return open(null, false, url, RemoteOperationPolicy.getDefault());
+  }
+
+  /**
+   * Connects to the remote at url to fetch into the repository in directory,
+   * which is held from the {@link RepositoryPool} until the session is closed.
+   */
+  public static GitRemoteSession open(File directory, String url) throws GitException {
+    return open(directory, url, RemoteOperationPolicy.getDefault());
+  }
+
+  /**
+   * Opens a session like {@link #open(File, String)}, with the timeouts and
+   * retries of policy.
+   */
+  public static GitRemoteSession open(File directory, String url, RemoteOperationPolicy policy) throws GitException {
+    Repository repository;
+    try {
+      repository = RepositoryPool.getInstance().acquire(directory);
+    } catch (IOException e) {
+      throw new GitException("Cannot open repository " + directory, e);
+    }
+    return open(repository, true, url, policy);
+  }
+
+  /**
+   * @return the session or null if the remote is not accessible or
+   * {@link RemoteHealth} considers it unreachable.
+   */
+  public static GitRemoteSession tryOpen(File directory, String url) {
+    return tryOpen(directory, url, RemoteOperationPolicy.getDefault());
+  }
+
+  public static GitRemoteSession tryOpen(File directory, String url, RemoteOperationPolicy policy) {
+    try {
+      return open(directory, url, policy);
+    } catch (GitException e) {
+      return null;
+    }
+  }
+
+  private static GitRemoteSession open(final Repository repository, final boolean pooled, final String url, final RemoteOperationPolicy policy) throws GitException {
+    RemoteHealth health = RemoteHealth.getInstance();
+    if (!health.allowRequest(url)) {
+      if (pooled)
+        RepositoryPool.getInstance().release(repository);
+      throw new GitException(url + " is not contacted, it was unreachable recently");
+    }
+    Timer timer = GitMetrics.start(GitOperation.LS_REMOTE, url);
+    try {
+      GitRemoteSession session = policy.execute(url, new Attempt<GitRemoteSession, Exception>() {
+        @Override
+        public GitRemoteSession run(CancelableProgressMonitor monitor, int timeout) throws URISyntaxException, IOException {
+          URIish uri = new URIish(url);
+          Transport transport = repository == null ? Transport.open(uri) : Transport.open(repository, uri);
+          try {
+            transport.setTimeout(timeout);
+            // asks the remote to include the tags of the commits it sends
+            transport.setTagOpt(TagOpt.AUTO_FOLLOW);
+            return new GitRemoteSession(url, policy, repository, pooled, transport, transport.openFetch());
+          } catch (IOException | RuntimeException e) {
+            transport.close();
+            throw e;
+          }
+        }
+      });
+      timer.succeeded();
+      return session;
+    } catch (Exception e) {
+      health.recordConnectFailure(url, e);
+      if (pooled)
+        RepositoryPool.getInstance().release(repository);
+      throw new GitException("Connection to " + url + " failed", e);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  /**
+   * @return the refs advertised by the remote, indexed by their full name.
+   */
+  public Map<String, Ref> getRefs() {
+    return refs;
+  }
+
+  /**
+   * @return the hash the remote advertises for the bound, or null if it does
+   * not advertise the bound.
+   */
+  public String getHashOfBound(UpdateBound bound) {
+    return GitHandler.getHashOfBound(refs, bound);
+  }
+
+  /**
+   * Fetches the advertised refs matched by refSpecs over the open connection
+   * and updates their destination refs. Only objects that are not in the
+   * repository yet are requested. Destination refs are only moved backwards
+   * or sideways if their ref spec forces the update. Tags of fetched and of
+   * local commits are created as well, like with JGit's default automatic tag
+   * following. The fetch is not
+   * retried, since the connection can only negotiate once, but it gets
+   * cancelled at the deadline of the policy of the session.
+   */
+  public void fetch(List<RefSpec> refSpecs) throws GitException {
+    if (repository == null)
+      throw new IllegalStateException("The session was opened without a repository");
+    if (fetched)
+      throw new IllegalStateException("The session already fetched");
+    fetched = true;
+
+    Timer timer = GitMetrics.start(GitOperation.FETCH, url);
+    try {
+      Map<String, Ref> updates = new LinkedHashMap<>();
+      Set<String> forced = new HashSet<>();
+      List<Ref> wants = new ArrayList<>();
+      Set<ObjectId> wantedIds = new HashSet<>();
+      for (Ref ref : refs.values()) {
+        for (RefSpec refSpec : refSpecs) {
+          if (ref.getObjectId() == null || !refSpec.matchSource(ref))
+            continue;
+          String destination = refSpec.getDestination() == null ? null : refSpec.expandFromSource(ref).getDestination();
+          if (destination != null) {
+            updates.put(destination, ref);
+            if (refSpec.isForceUpdate())
+              forced.add(destination);
+          }
+          if (!repository.hasObject(ref.getObjectId()) && wantedIds.add(ref.getObjectId()))
+            wants.add(ref);
+        }
+      }
+      // the remote only includes tags of the commits it sends, so tags of
+      // local commits are requested explicitly
+      for (Ref ref : refs.values()) {
+        if (isFollowedTag(ref, updates) && !repository.hasObject(ref.getObjectId()) && repository.hasObject(targetOf(ref))
+            && wantedIds.add(ref.getObjectId()))
+          wants.add(ref);
+      }
+
+      if (!wants.isEmpty()) {
+        Set<ObjectId> haves = new HashSet<>();
+        for (Ref ref : repository.getAllRefs().values()) {
+          if (ref.getObjectId() != null)
+            haves.add(ref.getObjectId());
+        }
+        // without a pack lock message the received pack is not locked, so
+        // there is no lock to release
+        try {
+          connection.fetch(CancelableProgressMonitor.withTimeout(GitMetrics.progressMonitor(url), policy.deadline), wants, haves);
+        } catch (TransportException e) {
+          reportHealth(e);
+          throw e;
+        }
+      }
+      reportHealth(null);
+      // follow the tags that point to any commit that is available now,
+      // including the ones the fetch received below the fetched refs
+      for (Ref ref : refs.values()) {
+        if (isFollowedTag(ref, updates) && repository.hasObject(ref.getObjectId()) && repository.hasObject(targetOf(ref)))
+          updates.put(ref.getName(), ref);
+      }
+
+      try (RevWalk revWalk = new RevWalk(repository)) {
+        for (Map.Entry<String, Ref> update : updates.entrySet())
+          updateRef(revWalk, update.getKey(), update.getValue().getObjectId(), forced.contains(update.getKey()));
+      }
+      timer.succeeded();
+    } catch (IOException e) {
+      throw new GitException("Fetch of repository " + url + " failed", e);
+    } finally {
+      timer.stop();
+    }
+  }
+
+  private boolean isFollowedTag(Ref ref, Map<String, Ref> updates) throws IOException {
+    String name = ref.getName();
+    return name.startsWith(Constants.R_TAGS) && ref.getObjectId() != null && !updates.containsKey(name) && repository.getRef(name) == null;
+  }
+
+  private static ObjectId targetOf(Ref ref) {
+    return ref.getPeeledObjectId() != null ? ref.getPeeledObjectId() : ref.getObjectId();
+  }
+
+  private void updateRef(RevWalk revWalk, String name, ObjectId id, boolean force) throws IOException {
+    RefUpdate update = repository.updateRef(name);
+    update.setNewObjectId(id);
+    update.setForceUpdate(force);
+    RefUpdate.Result result = update.update(revWalk);
+    switch (result) {
+      case NEW:
+      case NO_CHANGE:
+      case FAST_FORWARD:
+      case FORCED:
+        return;
+      default:
+        throw new IOException("Update of " + name + " to " + id.name() + " failed: " + result);
+    }
+  }
+
+  /**
+   * @param failure the failure of the fetch or null if the remote answered.
+   */
+  private void reportHealth(Throwable failure) {
+    healthReported = true;
+    if (failure == null)
+      RemoteHealth.getInstance().recordSuccess(url);
+    else
+      RemoteHealth.getInstance().recordFailure(url, failure);
+  }
+
+  @Override
+  public void close() {
+    if (!healthReported)
+      reportHealth(null);
+    connection.close();
+    transport.close();
+    if (pooled)
+      RepositoryPool.getInstance().release(repository);
+  }
+}
@@ -0,0 +1,300 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.FileTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FileUtils;
+
+/**
+ * Fast-forwards HEAD by rewriting only the paths that differ between the
+ * trees of HEAD and the new commit, instead of letting a merge or reset
+ * compare the whole index and working tree.
+ *
+ * Subtrees with the same id in both commits are not entered, so the cost is
+ * proportional to the size of the change. The fast-forward is refused,
+ * without changing anything, if a changed path has local modifications in the
+ * index or working tree, if an added path is in the way of an untracked file,
+ * or if the new commit does not descend from HEAD. If writing the changes
+ * fails, only the changed paths are restored from HEAD and the index is left
+ * as it was. Gitlinks are only updated in the index, their submodules are
+ * left to {@link SubmoduleUpdater}.
+ */
+public class IncrementalCheckout {
+
+  private static final int OLD = 0, NEW = 1, INDEX = 2, WORK = 3;
+
+  private static class Change {
+    private final String path;
+    private final FileMode mode;
+    private final ObjectId id;
+
+    private Change(String path, FileMode mode, ObjectId id) {
+      this.path = path;
+      this.mode = mode;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Includes the paths whose mode or id differ between the old and the new
+   * tree.
+   */
+  private static final TreeFilter CHANGED = new TreeFilter() {
+    @Override
+    public boolean include(TreeWalk walker) {
+      return walker.getRawMode(OLD) != walker.getRawMode(NEW) || !walker.idEqual(OLD, NEW);
+    }
+
+    @Override
+    public boolean shouldBeRecursive() {
+      return false;
+    }
+
+    @Override
+    public TreeFilter clone() {
+      return this;
+    }
+  };
+
+  /**
+   * Fast-forwards HEAD of repo to target if target descends from HEAD and no
+   * changed path has local modifications.
+   *
+   * @return true if HEAD is at target now, false if nothing was changed.
+   */
+  public static boolean fastForward(Repository repo, ObjectId target) throws IOException {
+    ObjectId oldHead = repo.resolve(Constants.HEAD);
+    if (oldHead == null) {
+      return false;
+    }
+    if (oldHead.equals(target)) {
+      return true;
+    }
+
+    RevCommit oldCommit;
+    RevCommit newCommit;
+    try (RevWalk revWalk = new RevWalk(repo)) {
+      oldCommit = revWalk.parseCommit(oldHead);
+      newCommit = revWalk.parseCommit(target);
+      if (!revWalk.isMergedInto(oldCommit, newCommit)) {
+        return false;
+      }
+    }
+
+    DirCache dirCache = repo.lockDirCache();
+    try {
+      List<String> deletions = new ArrayList<>();
+      List<Change> updates = new ArrayList<>();
+      if (!collectChanges(repo, dirCache, oldCommit, newCommit, deletions, updates)) {
+        return false;
+      }
+      boolean headMoved = false;
+      try {
+        apply(repo, dirCache, deletions, updates);
+        updateHead(repo, oldHead, target);
+        headMoved = true;
+        if (!dirCache.commit()) {
+          throw new IOException("Cannot commit index of " + repo.getWorkTree());
+        }
+      } catch (IOException | RuntimeException e) {
+        // the index is not committed and the changed paths were clean, so
+        // restoring them from the old commit undoes the fast-forward
+        try {
+          if (headMoved) {
+            resetHead(repo, target, oldHead);
+          }
+          restore(repo, oldCommit, deletions, updates);
+        } catch (IOException | RuntimeException restoreFailure) {
+          e.addSuppressed(restoreFailure);
+        }
+        throw e;
+      }
+      return true;
+    } finally {
+      dirCache.unlock();
+    }
+  }
+
+  private static boolean collectChanges(Repository repo, DirCache dirCache, RevCommit oldCommit, RevCommit newCommit, List<String> deletions, List<Change> updates) throws IOException {
+    File workTree = repo.getWorkTree();
+    try (ObjectReader reader = repo.newObjectReader()) {
+      TreeWalk walk = new TreeWalk(reader);
+      walk.addTree(oldCommit.getTree());
+      walk.addTree(newCommit.getTree());
+      walk.addTree(new DirCacheIterator(dirCache));
+      walk.addTree(new FileTreeIterator(repo));
+      walk.setFilter(CHANGED);
+      while (walk.next()) {
+        FileMode oldMode = walk.getFileMode(OLD);
+        FileMode newMode = walk.getFileMode(NEW);
+        if (oldMode == FileMode.TREE || newMode == FileMode.TREE) {
+          // a changed, added or deleted directory
+          walk.enterSubtree();
+          continue;
+        }
+        if (!isClean(walk, reader, oldMode)) {
+          return false;
+        }
+        String path = walk.getPathString();
+        if (newMode == FileMode.MISSING) {
+          deletions.add(path);
+        } else {
+          if (oldMode == FileMode.MISSING && newMode != FileMode.GITLINK && new File(workTree, path).exists()) {
+            return false;
+          }
+          updates.add(new Change(path, newMode, walk.getObjectId(NEW)));
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if the index and working tree entry of the current path of
+   * walk are as in the old tree.
+   */
+  private static boolean isClean(TreeWalk walk, ObjectReader reader, FileMode oldMode) throws IOException {
+    DirCacheIterator index = walk.getTree(INDEX, DirCacheIterator.class);
+    FileTreeIterator work = walk.getTree(WORK, FileTreeIterator.class);
+    if (oldMode == FileMode.MISSING) {
+      return index == null && (work == null || walk.getFileMode(NEW) == FileMode.GITLINK);
+    }
+    if (index == null || walk.getRawMode(INDEX) != walk.getRawMode(OLD) || !walk.idEqual(INDEX, OLD)) {
+      return false;
+    }
+    if (oldMode == FileMode.GITLINK) {
+      return true;
+    }
+    DirCacheEntry entry = index.getDirCacheEntry();
+    return entry != null && entry.getStage() == DirCacheEntry.STAGE_0 && work != null && !work.isModified(entry, true, reader);
+  }
+
+  private static void apply(Repository repo, DirCache dirCache, List<String> deletions, List<Change> updates) throws IOException {
+    File workTree = repo.getWorkTree();
+    DirCacheEditor editor = dirCache.editor();
+    for (String path : deletions) {
+      editor.add(new DeletePath(path));
+      File file = new File(workTree, path);
+      if (!file.isDirectory()) {
+        FileUtils.delete(file, FileUtils.RETRY | FileUtils.SKIP_MISSING);
+      }
+      deleteEmptyParents(workTree, file.getParentFile());
+    }
+    try (ObjectReader reader = repo.newObjectReader()) {
+      for (Change update : updates) {
+        final DirCacheEntry entry = new DirCacheEntry(update.path);
+        entry.setFileMode(update.mode);
+        entry.setObjectId(update.id);
+        if (update.mode == FileMode.GITLINK) {
+          FileUtils.mkdirs(new File(workTree, update.path), true);
+        } else {
+          DirCacheCheckout.checkoutEntry(repo, entry, reader);
+        }
+        editor.add(new PathEdit(entry) {
+          @Override
+          public void apply(DirCacheEntry ent) {
+            ent.copyMetaData(entry);
+          }
+        });
+      }
+    }
+    editor.finish();
+    dirCache.write();
+  }
+
+  /**
+   * Restores the changed paths in the working tree to their content in the
+   * old commit. Other paths are not touched, so they keep local changes.
+   */
+  private static void restore(Repository repo, RevCommit oldCommit, List<String> deletions, List<Change> updates) throws IOException {
+    File workTree = repo.getWorkTree();
+    List<String> paths = new ArrayList<>(deletions);
+    for (Change update : updates) {
+      paths.add(update.path);
+    }
+    try (ObjectReader reader = repo.newObjectReader()) {
+      List<DirCacheEntry> oldEntries = new ArrayList<>();
+      for (String path : paths) {
+        TreeWalk walk = TreeWalk.forPath(reader, path, oldCommit.getTree());
+        File file = new File(workTree, path);
+        if (walk == null) {
+          // added by the fast-forward
+          if (file.isDirectory()) {
+            deleteEmptyParents(workTree, file);
+          } else {
+            FileUtils.delete(file, FileUtils.RETRY | FileUtils.SKIP_MISSING);
+            deleteEmptyParents(workTree, file.getParentFile());
+          }
+          continue;
+        }
+        try {
+          if (walk.getFileMode(0) != FileMode.GITLINK) {
+            DirCacheEntry entry = new DirCacheEntry(path);
+            entry.setFileMode(walk.getFileMode(0));
+            entry.setObjectId(walk.getObjectId(0));
+            oldEntries.add(entry);
+          }
+        } finally {
+          walk.close();
+        }
+      }
+      // after the added paths are gone, so they are not in the way
+      for (DirCacheEntry entry : oldEntries) {
+        DirCacheCheckout.checkoutEntry(repo, entry, reader);
+      }
+    }
+  }
+
+  private static void deleteEmptyParents(File workTree, File directory) {
+    while (directory != null && !directory.equals(workTree)) {
+      String[] children = directory.list();
+      if (children == null || children.length > 0 || !directory.delete()) {
+        return;
+      }
+      directory = directory.getParentFile();
+    }
+  }
+
+  private static void updateHead(Repository repo, ObjectId oldHead, ObjectId target) throws IOException {
+    RefUpdate update = repo.updateRef(Constants.HEAD);
+    update.setExpectedOldObjectId(oldHead);
+    update.setNewObjectId(target);
+    update.setRefLogMessage("merge " + target.name() + ": Fast-forward", false);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.FAST_FORWARD && result != RefUpdate.Result.NO_CHANGE) {
+      throw new IOException("Update of HEAD to " + target.name() + " failed: " + result);
+    }
+  }
+
+  private static void resetHead(Repository repo, ObjectId target, ObjectId oldHead) throws IOException {
+    RefUpdate update = repo.updateRef(Constants.HEAD);
+    update.setExpectedOldObjectId(target);
+    update.setNewObjectId(oldHead);
+    update.setForceUpdate(true);
+    update.setRefLogMessage("reset: failed fast-forward to " + target.name(), false);
+    RefUpdate.Result result = update.update();
+    if (result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NO_CHANGE) {
+      throw new IOException("Reset of HEAD to " + oldHead.name() + " failed: " + result);
+    }
+  }
+}
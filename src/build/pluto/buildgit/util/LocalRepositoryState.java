@@ -0,0 +1,139 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Snapshot of the local state of a repository that is read directly from
+ * HEAD, the loose and packed refs and the config, without opening the
+ * repository or listing its working tree.
+ */
+public class LocalRepositoryState {
+
+  private static final String GITDIR_PREFIX = "gitdir: ";
+  private static final int MAX_SYMREF_DEPTH = 5;
+
+  private final boolean empty;
+  private final String headHash;
+  private final Set<String> remoteUrls;
+
+  private LocalRepositoryState(boolean empty, String headHash, Set<String> remoteUrls) {
+    this.empty = empty;
+    this.headHash = headHash;
+    this.remoteUrls = remoteUrls;
+  }
+
+  public static LocalRepositoryState read(File directory) {
+    boolean empty = FileUtil.isDirectoryEmpty(directory);
+    String headHash = null;
+    Set<String> remoteUrls = new HashSet<>();
+    if (!empty) {
+      try {
+        File gitDir = findGitDir(directory);
+        if (gitDir != null) {
+          headHash = readHead(gitDir);
+          readRemoteUrls(gitDir, remoteUrls);
+        }
+      } catch (IOException | ConfigInvalidException e) {
+        headHash = null;
+        remoteUrls.clear();
+      }
+    }
+    return new LocalRepositoryState(empty, headHash, remoteUrls);
+  }
+
+  /**
+   * @return true if the directory does not exist or does not contain any file.
+   */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+   * @return the hash of the commit HEAD points to or null if there is none.
+   */
+  public String getHeadHash() {
+    return headHash;
+  }
+
+  public boolean isUrlSet(String url) {
+    return remoteUrls.contains(url);
+  }
+
+  private static File findGitDir(File directory) throws IOException {
+    File dotGit = new File(directory, Constants.DOT_GIT);
+    if (dotGit.isDirectory()) {
+      return dotGit;
+    }
+    if (dotGit.isFile()) {
+      String content = readTrimmed(dotGit);
+      if (content.startsWith(GITDIR_PREFIX)) {
+        File gitDir = new File(content.substring(GITDIR_PREFIX.length()));
+        return gitDir.isAbsolute() ? gitDir : new File(directory, gitDir.getPath());
+      }
+    }
+    return null;
+  }
+
+  private static String readHead(File gitDir) throws IOException {
+    File head = new File(gitDir, Constants.HEAD);
+    if (!head.isFile()) {
+      return null;
+    }
+    String content = readTrimmed(head);
+    for (int depth = 0; depth < MAX_SYMREF_DEPTH; depth++) {
+      if (!content.startsWith("ref: ")) {
+        return ObjectId.isId(content) ? content : null;
+      }
+      String refName = content.substring("ref: ".length());
+      File looseRef = new File(gitDir, refName);
+      if (looseRef.isFile()) {
+        content = readTrimmed(looseRef);
+      } else {
+        return readPackedRef(gitDir, refName);
+      }
+    }
+    return null;
+  }
+
+  private static String readPackedRef(File gitDir, String refName) throws IOException {
+    File packedRefs = new File(gitDir, Constants.PACKED_REFS);
+    if (!packedRefs.isFile()) {
+      return null;
+    }
+    for (String line : Files.readAllLines(packedRefs.toPath(), StandardCharsets.UTF_8)) {
+      if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '^') {
+        continue;
+      }
+      int space = line.indexOf(' ');
+      if (space == Constants.OBJECT_ID_STRING_LENGTH && line.substring(space + 1).equals(refName)) {
+        return line.substring(0, space);
+      }
+    }
+    return null;
+  }
+
+  private static void readRemoteUrls(File gitDir, Set<String> remoteUrls) throws IOException, ConfigInvalidException {
+    FileBasedConfig config = new FileBasedConfig(new File(gitDir, Constants.CONFIG), FS.DETECTED);
+    config.load();
+    for (String remote : config.getSubsections("remote")) {
+      for (String url : config.getStringList("remote", remote, "url")) {
+        remoteUrls.add(url);
+      }
+    }
+  }
+
+  private static String readTrimmed(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+  }
+}
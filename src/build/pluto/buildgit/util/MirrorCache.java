@@ -0,0 +1,268 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FileUtils;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.metrics.GitMetrics.Timer;
+import build.pluto.buildgit.metrics.GitOperation;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
+
+/**
+ * Bare mirrors of remote repositories that working clones of the same url
+ * share their objects with.
+ *
+ * Every remote gets one mirror below the mirror directory, named after its
+ * normalized url. A mirror fetches all branches and tags of the remote and
+ * working clones reference its object database in objects/info/alternates,
+ * so the objects of a remote are only downloaded and stored once no matter
+ * how many working clones use it. Mirrors must not be garbage collected with
+ * pruning, since objects referenced by working clones would get lost.
+ */
+public class MirrorCache {
+
+  private static final List<RefSpec> MIRROR_REF_SPECS = Arrays.asList(
+      new RefSpec("+" + Constants.R_HEADS + "*:" + Constants.R_HEADS + "*"),
+      new RefSpec("+" + Constants.R_TAGS + "*:" + Constants.R_TAGS + "*"));
+
+  private static final String LOCK_FILE = "pluto.lock";
+
+  private static final Map<File, Object> locks = new HashMap<>();
+
+  /**
+   * @return the directory of the mirror of url in mirrorDirectory.
+   */
+  public static File mirrorOf(File mirrorDirectory, String url) {
+    String normalized = normalizeUrl(url);
+    String name;
+    try {
+      name = new URIish(normalized).getHumanishName();
+    } catch (IllegalArgumentException | URISyntaxException e) {
+      name = "";
+    }
+    name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+    return new File(mirrorDirectory, name + "-" + sha1(normalized).substring(0, 12) + Constants.DOT_GIT_EXT);
+  }
+
+  /**
+   * Normalizes url such that different spellings of the same remote map to
+   * the same mirror: credentials, trailing slashes and a trailing .git get
+   * dropped and scheme and host are lower cased.
+   */
+  public static String normalizeUrl(String url) {
+    try {
+      String trimmed = url.trim();
+      int schemeEnd = trimmed.indexOf("://");
+      if (schemeEnd > 0) {
+        trimmed = trimmed.substring(0, schemeEnd).toLowerCase() + trimmed.substring(schemeEnd);
+      }
+      URIish uri = new URIish(trimmed);
+      uri = uri.setUser(null).setPass(null);
+      if (uri.getHost() != null) {
+        uri = uri.setHost(uri.getHost().toLowerCase());
+      }
+      String path = uri.getPath();
+      if (path != null) {
+        while (path.length() > 1 && path.endsWith("/")) {
+          path = path.substring(0, path.length() - 1);
+        }
+        if (path.endsWith(Constants.DOT_GIT_EXT)) {
+          path = path.substring(0, path.length() - Constants.DOT_GIT_EXT.length());
+        }
+        uri = uri.setPath(path);
+      }
+      return uri.toString();
+    } catch (URISyntaxException e) {
+      return url.trim();
+    }
+  }
+
+  /**
+   * Creates the mirror of url if it does not exist yet and fetches all
+   * branches and tags of the remote into it. The fetch is skipped if the
+   * {@link RefAdvertisementCache} holds a valid advertisement of url that
+   * the mirror is already up to date with.
+   *
+   * @return the refs advertised by the remote.
+   */
+  public static Map<String, Ref> update(File mirror, String url) throws GitException {
+    return update(mirror, url, null);
+  }
+
+  /**
+   * Updates the mirror like {@link #update(File, String)}, but checks
+   * whether the mirror is up to date against advertisedRefs if they are not
+   * null.
+   */
+  public static Map<String, Ref> update(File mirror, String url, Map<String, Ref> advertisedRefs) throws GitException {
+    return update(mirror, url, advertisedRefs, RemoteOperationPolicy.getDefault());
+  }
+
+  /**
+   * Updates the mirror like {@link #update(File, String, Map)}, with the
+   * timeouts and retries of policy.
+   */
+  public static Map<String, Ref> update(File mirror, String url, Map<String, Ref> advertisedRefs, RemoteOperationPolicy policy) throws GitException {
+    try {
+      FileUtils.mkdirs(mirror, true);
+      synchronized (lockOf(mirror)) {
+        try (FileChannel channel = FileChannel.open(new File(mirror, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+          FileLock lock = channel.lock();
+          try {
+            return updateLocked(mirror, url, advertisedRefs, policy);
+          } finally {
+            lock.release();
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new GitException("Update of mirror " + mirror + " of " + url + " failed", e);
+    }
+  }
+
+  private static Map<String, Ref> updateLocked(File mirror, String url, Map<String, Ref> advertisedRefs, RemoteOperationPolicy policy) throws GitException, IOException {
+    if (!new File(mirror, Constants.CONFIG).exists()) {
+      create(mirror, url);
+    }
+    final Repository repo = RepositoryPool.getInstance().acquire(mirror);
+    try {
+      Map<String, Ref> cachedRefs = advertisedRefs != null ? advertisedRefs : RefAdvertisementCache.getInstance().getCachedRefs(url);
+      boolean isUpToDate = cachedRefs != null && isUpToDate(repo, cachedRefs);
+      GitMetrics.cacheAccessed(GitMetrics.CACHE_MIRRORS, isUpToDate);
+      if (isUpToDate) {
+        return cachedRefs;
+      }
+      RemoteHealth health = RemoteHealth.getInstance();
+      if (!health.allowRequest(url)) {
+        throw new GitException(url + " is not contacted, it was unreachable recently");
+      }
+      Timer timer = GitMetrics.start(GitOperation.FETCH, url);
+      try {
+        FetchResult result = policy.execute(url, new Attempt<FetchResult, GitAPIException>() {
+          @Override
+          public FetchResult run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+            return new Git(repo).fetch()
+                .setRemote(Constants.DEFAULT_REMOTE_NAME)
+                .setRemoveDeletedRefs(true)
+                .setProgressMonitor(monitor)
+                .setTimeout(timeout)
+                .call();
+          }
+        });
+        health.recordSuccess(url);
+        timer.succeeded();
+        return RefAdvertisementCache.getInstance().put(url, result.getAdvertisedRefs());
+      } catch (GitAPIException | RuntimeException e) {
+        health.recordFailure(url, e);
+        throw e;
+      } finally {
+        timer.stop();
+      }
+    } catch (GitAPIException e) {
+      throw new GitException("Fetch of repository " + url + " into mirror " + mirror + " failed", e);
+    } finally {
+      RepositoryPool.getInstance().release(repo);
+    }
+  }
+
+  private static void create(File mirror, String url) throws GitException {
+    Git git = null;
+    try {
+      git = Git.init().setBare(true).setDirectory(mirror).call();
+      StoredConfig config = git.getRepository().getConfig();
+      RemoteConfig remote = new RemoteConfig(config, Constants.DEFAULT_REMOTE_NAME);
+      remote.addURI(new URIish(url));
+      remote.setFetchRefSpecs(MIRROR_REF_SPECS);
+      remote.update(config);
+      config.save();
+    } catch (GitAPIException | IOException | URISyntaxException e) {
+      throw new GitException("Creation of mirror " + mirror + " of " + url + " failed", e);
+    } finally {
+      if (git != null)
+        git.close();
+    }
+  }
+
+  private static boolean isUpToDate(Repository repo, Map<String, Ref> advertisedRefs) throws IOException {
+    for (Ref ref : advertisedRefs.values()) {
+      String name = ref.getName();
+      if (!name.startsWith(Constants.R_HEADS) && !name.startsWith(Constants.R_TAGS) || name.endsWith("^{}")) {
+        continue;
+      }
+      Ref mirrored = repo.getRef(name);
+      if (mirrored == null || mirrored.getObjectId() == null || !mirrored.getObjectId().equals(ref.getObjectId())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Lets repo use the objects of mirror by adding the object database of
+   * mirror to its alternates.
+   */
+  public static void addAlternate(Repository repo, File mirror) throws IOException {
+    File info = new File(repo.getDirectory(), "objects/info");
+    Path alternates = new File(info, "alternates").toPath();
+    String objects = new File(mirror, "objects").getAbsolutePath();
+    FileUtils.mkdirs(info, true);
+    if (Files.exists(alternates) && Files.readAllLines(alternates, StandardCharsets.UTF_8).contains(objects)) {
+      return;
+    }
+    Files.write(alternates, (objects + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * @return the lock of the mirror in this process. Different spellings of
+   * the same directory get the same lock, since a file lock can only be held
+   * once per process.
+   */
+  private static Object lockOf(File mirror) throws IOException {
+    File key = mirror.getCanonicalFile();
+    synchronized (locks) {
+      Object lock = locks.get(key);
+      if (lock == null) {
+        lock = new Object();
+        locks.put(key, lock);
+      }
+      return lock;
+    }
+  }
+
+  private static String sha1(String s) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      return ObjectId.fromRaw(digest.digest(s.getBytes("UTF-8"))).name();
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
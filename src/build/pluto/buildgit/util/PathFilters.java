@@ -0,0 +1,99 @@
+package build.pluto.buildgit.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Creates the {@link TreeFilter}s that restrict a walk of a repository to
+ * include and exclude paths. Paths are relative to the root of the
+ * repository, use / as separator and match the path itself and everything
+ * below it.
+ */
+public class PathFilters {
+
+  public static TreeFilter create(Collection<String> includePaths, Collection<String> excludePaths) {
+    TreeFilter filter = TreeFilter.ALL;
+    if (!includePaths.isEmpty()) {
+      filter = PathFilterGroup.createFromStrings(includePaths);
+    }
+    if (!excludePaths.isEmpty()) {
+      TreeFilter exclude = new ExcludeFilter(new ArrayList<>(excludePaths));
+      filter = filter == TreeFilter.ALL ? exclude : AndTreeFilter.create(filter, exclude);
+    }
+    return filter;
+  }
+
+  /**
+   * @return a key that identifies the paths {@link #create} accepts for
+   * includePaths and excludePaths, independent of their order.
+   */
+  public static String keyOf(Collection<String> includePaths, Collection<String> excludePaths) {
+    StringBuilder key = new StringBuilder();
+    for (String path : new TreeSet<>(includePaths)) {
+      key.append('+').append(path).append('\0');
+    }
+    for (String path : new TreeSet<>(excludePaths)) {
+      key.append('-').append(path).append('\0');
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return true if path is equal to or below one of excludePaths.
+   */
+  public static boolean isExcluded(String path, Collection<String> excludePaths) {
+    for (String excluded : excludePaths) {
+      if (path.equals(excluded) || path.startsWith(excluded + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the paths below directory, relative to directory.
+   */
+  public static List<String> pathsBelow(String directory, Collection<String> paths) {
+    List<String> below = new ArrayList<>();
+    for (String path : paths) {
+      if (path.startsWith(directory + "/")) {
+        below.add(path.substring(directory.length() + 1));
+      }
+    }
+    return below;
+  }
+
+  /**
+   * Excludes entries that are equal to or below one of the paths. Negating a
+   * PathFilterGroup would also exclude the parent directories of the paths.
+   */
+  private static class ExcludeFilter extends TreeFilter {
+    private final List<String> paths;
+
+    private ExcludeFilter(List<String> paths) {
+      this.paths = paths;
+    }
+
+    @Override
+    public boolean include(TreeWalk walker) {
+      return !isExcluded(walker.getPathString(), paths);
+    }
+
+    @Override
+    public boolean shouldBeRecursive() {
+      return false;
+    }
+
+    @Override
+    public TreeFilter clone() {
+      return this;
+    }
+  }
+}
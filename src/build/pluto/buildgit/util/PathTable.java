@@ -0,0 +1,144 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * A compact list of paths relative to a repository, as walked by
+ * {@link GitHandler#visitNotIgnoredFilesOfRepo(File, GitHandler.PathVisitor)}.
+ *
+ * Each directory is stored once with its name and parent, and each file only
+ * with its name and directory, so paths share their common prefixes. Names
+ * are kept as UTF-8 in a single array and strings are only created by
+ * {@link #getPath(int)}. Paths that are added in the order of a tree walk
+ * share all their directories, others may store a directory more than once.
+ */
+public class PathTable implements GitHandler.PathVisitor {
+
+  private static final int ROOT = 0;
+
+  private byte[] names = new byte[1024];
+  private int namesLength = 0;
+
+  // the nodes are the directories and files, node 0 is the root
+  private int[] nameOffsets = new int[64];
+  private int[] nameLengths = new int[64];
+  private int[] parents = new int[64];
+  private int nodeCount = 1;
+
+  private int[] files = new int[64];
+  private int fileCount = 0;
+
+  // the directories of the last added path, from the root downwards
+  private int[] lastDirectories = new int[16];
+  private int lastDepth = 0;
+
+  @Override
+  public void visit(byte[] path, int length) {
+    add(path, length);
+  }
+
+  /**
+   * @param path holds the UTF-8 encoded path, using / as separator, in its
+   * first length bytes. It is copied, so it may be reused afterwards.
+   */
+  public void add(byte[] path, int length) {
+    int directory = ROOT;
+    int depth = 0;
+    boolean shared = true;
+    int start = 0;
+    for (int i = 0; i < length; i++) {
+      if (path[i] != '/')
+        continue;
+      if (shared && depth < lastDepth && nameEquals(lastDirectories[depth], path, start, i - start)) {
+        directory = lastDirectories[depth];
+      } else {
+        shared = false;
+        directory = addNode(directory, path, start, i - start);
+        if (depth == lastDirectories.length)
+          lastDirectories = Arrays.copyOf(lastDirectories, 2 * depth);
+        lastDirectories[depth] = directory;
+      }
+      depth++;
+      start = i + 1;
+    }
+    lastDepth = depth;
+    if (fileCount == files.length)
+      files = Arrays.copyOf(files, 2 * fileCount);
+    files[fileCount++] = addNode(directory, path, start, length - start);
+  }
+
+  public void add(String path) {
+    byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+    add(bytes, bytes.length);
+  }
+
+  public int size() {
+    return fileCount;
+  }
+
+  /**
+   * @return the i-th added path.
+   */
+  public String getPath(int i) {
+    return RawParseUtils.decode(getRawPath(i));
+  }
+
+  /**
+   * @return the UTF-8 encoded i-th added path.
+   */
+  public byte[] getRawPath(int i) {
+    if (i < 0 || i >= fileCount)
+      throw new IndexOutOfBoundsException("Index " + i + ", size " + fileCount);
+    int node = files[i];
+    int length = nameLengths[node];
+    for (int parent = parents[node]; parent != ROOT; parent = parents[parent])
+      length += nameLengths[parent] + 1;
+    byte[] path = new byte[length];
+    int end = length;
+    for (; node != ROOT; node = parents[node]) {
+      end -= nameLengths[node];
+      System.arraycopy(names, nameOffsets[node], path, end, nameLengths[node]);
+      if (end > 0)
+        path[--end] = '/';
+    }
+    return path;
+  }
+
+  /**
+   * @return the i-th added path resolved against directory.
+   */
+  public File getFile(File directory, int i) {
+    return new File(directory, getPath(i));
+  }
+
+  private boolean nameEquals(int node, byte[] path, int start, int length) {
+    if (nameLengths[node] != length)
+      return false;
+    int offset = nameOffsets[node];
+    for (int i = 0; i < length; i++) {
+      if (names[offset + i] != path[start + i])
+        return false;
+    }
+    return true;
+  }
+
+  private int addNode(int parent, byte[] path, int start, int length) {
+    if (nodeCount == parents.length) {
+      nameOffsets = Arrays.copyOf(nameOffsets, 2 * nodeCount);
+      nameLengths = Arrays.copyOf(nameLengths, 2 * nodeCount);
+      parents = Arrays.copyOf(parents, 2 * nodeCount);
+    }
+    if (namesLength + length > names.length)
+      names = Arrays.copyOf(names, Math.max(namesLength + length, 2 * names.length));
+    System.arraycopy(path, start, names, namesLength, length);
+    nameOffsets[nodeCount] = namesLength;
+    nameLengths[nodeCount] = length;
+    parents[nodeCount] = parent;
+    namesLength += length;
+    return nodeCount++;
+  }
+}
@@ -0,0 +1,347 @@
+package build.pluto.buildgit.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.Ref;
+
+import build.pluto.buildgit.metrics.GitMetrics;
+import build.pluto.buildgit.metrics.GitMetrics.Timer;
+import build.pluto.buildgit.metrics.GitOperation;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
+
+/**
+ * Process-wide cache of the refs a remote repository advertises, keyed by the
+ * url of the remote. An entry expires after a configurable time to live and
+ * the least recently used entries get evicted once the cache is full.
+ *
+ * The time to live defaults to 0, which disables the cache and makes every
+ * lookup contact the remote. Setting it to the length of a build lets all
+ * bound lookups of that build share one ls-remote per url. It can be set with
+ * {@link #setTimeToLive(long)} or the system property {@value #TTL_PROPERTY}.
+ *
+ * Concurrent lookups of the same url with equal policies share one ls-remote,
+ * independent of the time to live. A lookup with another policy does not wait
+ * for them, so its own timeouts and deadline apply. {@link #getRefsAsync(String)} runs the ls-remote on a shared
+ * pool of at most {@value #LOADERS_PROPERTY} (default 16) daemon threads.
+ * Remotes that {@link RemoteHealth} considers unreachable are not contacted
+ * and fail right away.
+ */
+public class RefAdvertisementCache {
+
+  public static final String TTL_PROPERTY = "pluto.git.refcache.ttl";
+  public static final String SIZE_PROPERTY = "pluto.git.refcache.size";
+  public static final String LOADERS_PROPERTY = "pluto.git.refcache.loaders";
+
+  private static final RefAdvertisementCache instance = new RefAdvertisementCache(
+      Long.getLong(TTL_PROPERTY, 0L),
+      Integer.getInteger(SIZE_PROPERTY, 64));
+
+  public static RefAdvertisementCache getInstance() {
+    return instance;
+  }
+
+  private static final ThreadPoolExecutor loader = createLoader(Math.max(1, Integer.getInteger(LOADERS_PROPERTY, 16)));
+
+  private static ThreadPoolExecutor createLoader(int threads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "pluto-git-ls-remote");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static class Entry {
+    private final Map<String, Ref> refs;
+    private final long createdAt;
+
+    private Entry(Map<String, Ref> refs, long createdAt) {
+      this.refs = refs;
+      this.createdAt = createdAt;
+    }
+  }
+
+  /**
+   * Identifies the lookups that can share a load.
+   */
+  private static class LoadKey {
+    private final String url;
+    private final RemoteOperationPolicy policy;
+
+    private LoadKey(String url, RemoteOperationPolicy policy) {
+      this.url = url;
+      this.policy = policy;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof LoadKey)) {
+        return false;
+      }
+      LoadKey other = (LoadKey) obj;
+      return url.equals(other.url) && policy.equals(other.policy);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * url.hashCode() + policy.hashCode();
+    }
+  }
+
+  private class Load extends FutureTask<Map<String, Ref>> {
+    private final LoadKey key;
+
+    private Load(final LoadKey key) {
+      super(new Callable<Map<String, Ref>>() {
+        @Override
+        public Map<String, Ref> call() throws GitAPIException {
+          return load(key.url, key.policy);
+        }
+      });
+      this.key = key;
+    }
+
+    @Override
+    protected void done() {
+      synchronized (RefAdvertisementCache.this) {
+        if (loads.get(key) == this) {
+          loads.remove(key);
+        }
+      }
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<LoadKey, Load> loads = new HashMap<>();
+  private long timeToLive;
+  private int maximumSize;
+
+  RefAdvertisementCache(long timeToLive, int maximumSize) {
+    this.timeToLive = timeToLive;
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * Returns all refs advertised by the remote at url, indexed by their full
+   * name. Only contacts the remote if there is no valid cache entry for url
+   * and no other lookup of url with the same policy is contacting it
+   * already.
+   */
+  public Map<String, Ref> getRefs(String url) throws GitAPIException {
+    return getRefs(url, RemoteOperationPolicy.getDefault());
+  }
+
+  /**
+   * Looks up the refs of the remote at url like {@link #getRefs(String)},
+   * with the timeouts and retries of policy.
+   */
+  public Map<String, Ref> getRefs(String url, RemoteOperationPolicy policy) throws GitAPIException {
+    Map<String, Ref> refs = getCachedRefs(url);
+    GitMetrics.cacheAccessed(GitMetrics.CACHE_REF_ADVERTISEMENTS, refs != null);
+    if (refs != null) {
+      return refs;
+    }
+    LoadKey key = new LoadKey(url, policy);
+    Load load;
+    boolean isRunning;
+    synchronized (this) {
+      load = loads.get(key);
+      isRunning = load != null;
+      if (!isRunning) {
+        load = new Load(key);
+        loads.put(key, load);
+      }
+    }
+    if (!isRunning) {
+      load.run();
+    }
+    return join(url, load);
+  }
+
+  /**
+   * Looks up the refs of the remote at url like {@link #getRefs(String)},
+   * but contacts the remote in the background.
+   *
+   * @return the refs, or a failure with the {@link GitAPIException} of the
+   * lookup as cause.
+   */
+  public Future<Map<String, Ref>> getRefsAsync(String url) {
+    return getRefsAsync(url, RemoteOperationPolicy.getDefault());
+  }
+
+  public Future<Map<String, Ref>> getRefsAsync(String url, RemoteOperationPolicy policy) {
+    Map<String, Ref> refs = getCachedRefs(url);
+    GitMetrics.cacheAccessed(GitMetrics.CACHE_REF_ADVERTISEMENTS, refs != null);
+    if (refs != null) {
+      FutureTask<Map<String, Ref>> done = new FutureTask<>(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }, refs);
+      done.run();
+      return done;
+    }
+    LoadKey key = new LoadKey(url, policy);
+    synchronized (this) {
+      Load load = loads.get(key);
+      if (load == null) {
+        load = new Load(key);
+        loads.put(key, load);
+        loader.execute(load);
+      }
+      return load;
+    }
+  }
+
+  /**
+   * Waits for the result of {@link #getRefsAsync(String)}.
+   */
+  public static Map<String, Ref> join(String url, Future<Map<String, Ref>> refs) throws GitAPIException {
+    try {
+      return refs.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof GitAPIException) {
+        throw (GitAPIException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new TransportException("Lookup of refs of " + url + " failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TransportException("Lookup of refs of " + url + " was interrupted", e);
+    }
+  }
+
+  private Map<String, Ref> load(final String url, RemoteOperationPolicy policy) throws GitAPIException {
+    RemoteHealth health = RemoteHealth.getInstance();
+    if (!health.allowRequest(url)) {
+      throw new TransportException(url + " is not contacted, it was unreachable recently");
+    }
+    Timer timer = GitMetrics.start(GitOperation.LS_REMOTE, url);
+    try {
+      Collection<Ref> advertisedRefs = policy.executeHedged(url, new Attempt<Collection<Ref>, GitAPIException>() {
+        @Override
+        public Collection<Ref> run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+          return Git.lsRemoteRepository()
+              .setRemote(url)
+              .setTimeout(timeout)
+              .call();
+        }
+      });
+      health.recordSuccess(url);
+      timer.succeeded();
+      return put(url, advertisedRefs);
+    } catch (GitAPIException | RuntimeException e) {
+      health.recordConnectFailure(url, e);
+      throw e;
+    } finally {
+      timer.stop();
+    }
+  }
+
+  /**
+   * Stores the advertised refs of the remote at url, e.g. after they were
+   * received as part of a fetch.
+   */
+  public synchronized Map<String, Ref> put(String url, Collection<Ref> advertisedRefs) {
+    Map<String, Ref> refs = new LinkedHashMap<>();
+    for (Ref ref : advertisedRefs) {
+      refs.put(ref.getName(), ref);
+    }
+    refs = Collections.unmodifiableMap(refs);
+    if (timeToLive > 0 && maximumSize > 0) {
+      entries.put(url, new Entry(refs, System.nanoTime()));
+      evict();
+    }
+    return refs;
+  }
+
+  /**
+   * @return the cached refs of the remote at url or null if there is no
+   * valid cache entry for url. Never contacts the remote.
+   */
+  public synchronized Map<String, Ref> getCachedRefs(String url) {
+    Entry entry = entries.get(url);
+    if (entry == null) {
+      return null;
+    }
+    if (isExpired(entry)) {
+      entries.remove(url);
+      return null;
+    }
+    return entry.refs;
+  }
+
+  public synchronized void invalidate(String url) {
+    entries.remove(url);
+  }
+
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param timeToLive how long an advertisement stays valid in milliseconds.
+   * A value of 0 or less disables the cache.
+   */
+  public synchronized void setTimeToLive(long timeToLive) {
+    this.timeToLive = timeToLive;
+    evict();
+  }
+
+  public synchronized long getTimeToLive() {
+    return timeToLive;
+  }
+
+  /**
+   * @param maximumSize how many remotes are cached at most before the least
+   * recently used entry gets evicted.
+   */
+  public synchronized void setMaximumSize(int maximumSize) {
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  public synchronized int getMaximumSize() {
+    return maximumSize;
+  }
+
+  private boolean isExpired(Entry entry) {
+    return System.nanoTime() - entry.createdAt >= TimeUnit.MILLISECONDS.toNanos(timeToLive);
+  }
+
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entries.size() > maximumSize || isExpired(entry)) {
+        it.remove();
+      }
+    }
+  }
+}
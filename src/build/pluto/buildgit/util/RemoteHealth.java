@@ -0,0 +1,195 @@
+package build.pluto.buildgit.util;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+
+/**
+ * Process-wide circuit breaker per remote, keyed by the normalized url.
+ *
+ * A remote that failed {@value #THRESHOLD_PROPERTY} (default 2) times in a
+ * row is considered unreachable and is not contacted anymore, so callers fall
+ * back to the local state right away instead of waiting for another
+ * connection timeout. After a backoff one probe is let through: if it
+ * succeeds, the remote is reachable again, otherwise the backoff doubles. The
+ * first backoff is {@value #BACKOFF_PROPERTY} milliseconds (default 30
+ * seconds) and it grows up to ten minutes. Only failures to reach the remote
+ * count, failures the remote reports, like a missing ref, do not.
+ */
+public class RemoteHealth {
+
+  public static final String THRESHOLD_PROPERTY = "pluto.git.health.threshold";
+  public static final String BACKOFF_PROPERTY = "pluto.git.health.backoff";
+
+  private static final long MAXIMUM_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+  private static final RemoteHealth instance = new RemoteHealth(
+      Math.max(1, Integer.getInteger(THRESHOLD_PROPERTY, 2)),
+      Long.getLong(BACKOFF_PROPERTY, TimeUnit.SECONDS.toMillis(30)));
+
+  public static RemoteHealth getInstance() {
+    return instance;
+  }
+
+  public static enum State {
+    /** The remote is reachable and gets contacted. */
+    CLOSED,
+    /** The remote is unreachable and does not get contacted. */
+    OPEN,
+    /** The backoff passed and a probe may contact the remote. */
+    HALF_OPEN
+  }
+
+  private static class Health {
+    private int failures = 0;
+    private long backoff;
+    private long openedAt;
+    private long probeStartedAt = -1;
+  }
+
+  private final Map<String, Health> healths = new HashMap<>();
+  private final int threshold;
+  private final long initialBackoff;
+
+  RemoteHealth(int threshold, long initialBackoff) {
+    this.threshold = threshold;
+    this.initialBackoff = initialBackoff;
+  }
+
+  /**
+   * @return true if url may be contacted. Once the backoff of an unreachable
+   * remote passed, this is true for the first caller only, which has to
+   * report the outcome as probe.
+   */
+  public synchronized boolean allowRequest(String url) {
+    Health health = healths.get(key(url));
+    if (health == null || health.failures < threshold) {
+      return true;
+    }
+    long now = System.nanoTime();
+    if (now - health.openedAt < TimeUnit.MILLISECONDS.toNanos(health.backoff)) {
+      return false;
+    }
+    // a probe that never reported back does not block further probes forever
+    if (health.probeStartedAt >= 0 && now - health.probeStartedAt < TimeUnit.MILLISECONDS.toNanos(health.backoff)) {
+      return false;
+    }
+    health.probeStartedAt = now;
+    return true;
+  }
+
+  public synchronized void recordSuccess(String url) {
+    healths.remove(key(url));
+  }
+
+  public synchronized void recordFailure(String url) {
+    String key = key(url);
+    Health health = healths.get(key);
+    if (health == null) {
+      health = new Health();
+      healths.put(key, health);
+    }
+    health.failures++;
+    if (health.failures < threshold) {
+      return;
+    }
+    if (health.failures == threshold) {
+      health.backoff = initialBackoff;
+    } else {
+      health.backoff = Math.min(MAXIMUM_BACKOFF, Math.max(1, health.backoff) * 2);
+    }
+    health.openedAt = System.nanoTime();
+    health.probeStartedAt = -1;
+  }
+
+  /**
+   * Records the outcome of an operation on url that failed with failure: a
+   * failure if {@link #isConnectionFailure(Throwable)}, a success otherwise,
+   * since the remote answered, e.g. that it does not have a ref.
+   */
+  public void recordFailure(String url, Throwable failure) {
+    if (isConnectionFailure(failure))
+      recordFailure(url);
+    else
+      recordSuccess(url);
+  }
+
+  /**
+   * Records the outcome of connecting to url and reading its ref
+   * advertisement, which failed with failure. No refs are involved yet, so
+   * every transport failure counts unless the remote answered that the
+   * repository does not exist or the protocol is not supported. Unlike
+   * other transports, JGit's git:// transport does not keep the I/O error of
+   * a failed connection as cause.
+   */
+  public void recordConnectFailure(String url, Throwable failure) {
+    if (isConnectionFailure(failure) || isTransportFailure(failure) && !isRemoteAnswer(failure))
+      recordFailure(url);
+    else
+      recordSuccess(url);
+  }
+
+  /**
+   * @return true if failure is a transport failure caused by an I/O error of
+   * the connection, like a refused connection, an unknown host or a timeout.
+   */
+  public static boolean isConnectionFailure(Throwable failure) {
+    boolean transport = false;
+    for (Throwable t = failure; t != null; t = t.getCause()) {
+      if (isTransportException(t))
+        transport = true;
+      else if (transport && t instanceof IOException)
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isTransportFailure(Throwable failure) {
+    for (Throwable t = failure; t != null; t = t.getCause()) {
+      if (isTransportException(t))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isRemoteAnswer(Throwable failure) {
+    for (Throwable t = failure; t != null; t = t.getCause()) {
+      if (t instanceof NoRemoteRepositoryException || t instanceof NotSupportedException || t instanceof InvalidRemoteException)
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isTransportException(Throwable t) {
+    return t instanceof TransportException || t instanceof org.eclipse.jgit.api.errors.TransportException;
+  }
+
+  public synchronized State getState(String url) {
+    Health health = healths.get(key(url));
+    if (health == null || health.failures < threshold) {
+      return State.CLOSED;
+    }
+    if (System.nanoTime() - health.openedAt < TimeUnit.MILLISECONDS.toNanos(health.backoff)) {
+      return State.OPEN;
+    }
+    return State.HALF_OPEN;
+  }
+
+  public synchronized void reset(String url) {
+    healths.remove(key(url));
+  }
+
+  public synchronized void resetAll() {
+    healths.clear();
+  }
+
+  private static String key(String url) {
+    return MirrorCache.normalizeUrl(url);
+  }
+}
@@ -0,0 +1,313 @@
+package build.pluto.buildgit.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+
+import build.pluto.buildgit.metrics.GitMetrics;
+
+/**
+ * Timeouts, deadline and retries of operations that contact a remote.
+ *
+ * Every connection gets the timeout of {@link Builder#setTimeout(int)}, and
+ * a failed operation is retried with exponential backoff and jitter up to
+ * {@link Builder#setAttempts(int)} times if it failed with a transient I/O
+ * error of the connection. A deadline bounds an operation including its retries;
+ * clones and fetches are cancelled through their progress monitor once it
+ * passed, and ls-remote is not waited for any longer. Optionally, an ls-remote that did not answer within
+ * {@link Builder#setHedgeDelay(long)} gets a second, hedged ls-remote and the
+ * first answer wins.
+ */
+public class RemoteOperationPolicy implements Serializable {
+  private static final long serialVersionUID = -3056318849155437727L;
+
+  private static volatile RemoteOperationPolicy defaultPolicy = new Builder().build();
+
+  /**
+   * @return the policy of operations that are not configured otherwise.
+   */
+  public static RemoteOperationPolicy getDefault() {
+    return defaultPolicy;
+  }
+
+  public static void setDefault(RemoteOperationPolicy policy) {
+    if (policy == null)
+      throw new IllegalArgumentException("policy is null");
+    defaultPolicy = policy;
+  }
+
+  /**
+   * @return policy or the default policy if policy is null.
+   */
+  public static RemoteOperationPolicy orDefault(RemoteOperationPolicy policy) {
+    return policy != null ? policy : defaultPolicy;
+  }
+
+  /**
+   * One attempt of an operation.
+   */
+  public static interface Attempt<T, E extends Exception> {
+    /**
+     * @param monitor to pass to JGit, which cancels the attempt at the
+     * deadline.
+     * @param timeout to pass to JGit in seconds, 0 for none.
+     */
+    public T run(CancelableProgressMonitor monitor, int timeout) throws E;
+  }
+
+  private static final Random random = new Random();
+
+  private static final ExecutorService hedger = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "pluto-git-hedge");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  public final int timeout;
+  public final long deadline;
+  public final int attempts;
+  public final long backoff;
+  public final long maximumBackoff;
+  public final long hedgeDelay;
+
+  private RemoteOperationPolicy(Builder builder) {
+    this.timeout = builder.timeout;
+    this.deadline = builder.deadline;
+    this.attempts = builder.attempts;
+    this.backoff = builder.backoff;
+    this.maximumBackoff = builder.maximumBackoff;
+    this.hedgeDelay = builder.hedgeDelay;
+  }
+
+  /**
+   * Runs attempt until it succeeds, fails with an error that is not worth a
+   * retry, the attempts are used up or the deadline passed.
+   *
+   * @return the result of the successful attempt.
+   * @throws E the failure of the last attempt.
+   */
+  @SuppressWarnings("unchecked")
+  public <T, E extends Exception> T execute(String url, Attempt<T, E> attempt) throws E {
+    long deadlineNanos = deadline > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+    long nextBackoff = backoff;
+    for (int i = 1;; i++) {
+      CancelableProgressMonitor monitor = new CancelableProgressMonitor(GitMetrics.progressMonitor(url), deadlineNanos);
+      try {
+        return attempt.run(monitor, timeoutUntil(deadlineNanos));
+      } catch (Exception e) {
+        if (i >= attempts || monitor.isCancelled() || !isRetryable(e))
+          throw (E) e;
+        long sleep = nextBackoff / 2 + (long) (random.nextDouble() * (nextBackoff / 2 + 1));
+        if (deadlineNanos != 0 && deadlineNanos - System.nanoTime() < TimeUnit.MILLISECONDS.toNanos(sleep))
+          throw (E) e;
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw (E) e;
+        }
+        nextBackoff = Math.min(maximumBackoff, nextBackoff * 2);
+      }
+    }
+  }
+
+  /**
+   * Runs attempt like {@link #execute(String, Attempt)}, but waits at most
+   * until the deadline, even if a connection hangs without timing out. If
+   * the attempt did not finish after the hedge delay, a second execution is
+   * started and the result of the first one that succeeds is returned. Only
+   * suitable for operations without side effects, such as ls-remote.
+   */
+  public <T> T executeHedged(final String url, final Attempt<T, GitAPIException> attempt) throws GitAPIException {
+    if (hedgeDelay <= 0 && deadline <= 0)
+      return execute(url, attempt);
+
+    Callable<T> execution = new Callable<T>() {
+      @Override
+      public T call() throws GitAPIException {
+        return execute(url, attempt);
+      }
+    };
+    long start = System.nanoTime();
+    long hedgeAt = hedgeDelay > 0 ? start + TimeUnit.MILLISECONDS.toNanos(hedgeDelay) : 0;
+    long deadlineAt = deadline > 0 ? start + TimeUnit.MILLISECONDS.toNanos(deadline) : 0;
+    CompletionService<T> completion = new ExecutorCompletionService<>(hedger);
+    List<Future<T>> executions = new ArrayList<>();
+    executions.add(completion.submit(execution));
+    int running = 1;
+    Throwable failure = null;
+    try {
+      while (true) {
+        long now = System.nanoTime();
+        if (hedgeAt != 0 && now - hedgeAt >= 0) {
+          executions.add(completion.submit(execution));
+          running++;
+          hedgeAt = 0;
+        }
+        long wakeUp = hedgeAt != 0 && (deadlineAt == 0 || hedgeAt - deadlineAt < 0) ? hedgeAt : deadlineAt;
+        Future<T> done = wakeUp == 0 ? completion.take() : completion.poll(Math.max(0, wakeUp - now), TimeUnit.NANOSECONDS);
+        if (done == null) {
+          if (deadlineAt != 0 && System.nanoTime() - deadlineAt >= 0)
+            throw new TransportException(url + " did not answer within " + deadline + " ms", new SocketTimeoutException());
+          continue;
+        }
+        running--;
+        try {
+          return done.get();
+        } catch (ExecutionException e) {
+          if (failure == null)
+            failure = e.getCause();
+          // a failure was retried already, so it does not get hedged
+          hedgeAt = 0;
+          if (running == 0)
+            break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TransportException("ls-remote of " + url + " was interrupted", e);
+    } finally {
+      for (Future<T> future : executions)
+        future.cancel(true);
+    }
+    if (failure instanceof GitAPIException)
+      throw (GitAPIException) failure;
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+    throw new TransportException("ls-remote of " + url + " failed", failure);
+  }
+
+  private int timeoutUntil(long deadlineNanos) {
+    if (deadlineNanos == 0)
+      return timeout;
+    long remaining = TimeUnit.NANOSECONDS.toSeconds(deadlineNanos - System.nanoTime()) + 1;
+    int untilDeadline = (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+    return timeout > 0 ? Math.min(timeout, untilDeadline) : untilDeadline;
+  }
+
+  /**
+   * @return true if e is a transient failure of the connection: an I/O error
+   * like a timeout, a reset or refused connection or an unknown host, thrown
+   * directly or as cause of a transport failure. Failures the remote
+   * reports, like a missing ref or repository, are not retried.
+   */
+  static boolean isRetryable(Throwable e) {
+    if (RemoteHealth.isConnectionFailure(e))
+      return true;
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t instanceof SocketException || t instanceof InterruptedIOException || t instanceof UnknownHostException
+          || t instanceof EOFException || t.getClass() == IOException.class)
+        return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof RemoteOperationPolicy))
+      return false;
+    RemoteOperationPolicy other = (RemoteOperationPolicy) obj;
+    return timeout == other.timeout && deadline == other.deadline && attempts == other.attempts
+        && backoff == other.backoff && maximumBackoff == other.maximumBackoff && hedgeDelay == other.hedgeDelay;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(new long[] { timeout, deadline, attempts, backoff, maximumBackoff, hedgeDelay });
+  }
+
+  public static class Builder {
+    private int timeout = 60;
+    private long deadline = 0;
+    private int attempts = 3;
+    private long backoff = 500;
+    private long maximumBackoff = 8000;
+    private long hedgeDelay = 0;
+
+    /**
+     * @param timeout how many seconds a connection may stay idle before the
+     * operation fails. The default is 60, 0 waits forever.
+     */
+    public Builder setTimeout(int timeout) {
+      if (timeout < 0)
+        throw new IllegalArgumentException("timeout is negative");
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * @param deadline how many milliseconds an operation may take including
+     * its retries. The default is 0, which sets no deadline.
+     */
+    public Builder setDeadline(long deadline) {
+      if (deadline < 0)
+        throw new IllegalArgumentException("deadline is negative");
+      this.deadline = deadline;
+      return this;
+    }
+
+    /**
+     * @param attempts how often an operation is tried at most. The default
+     * is 3.
+     */
+    public Builder setAttempts(int attempts) {
+      if (attempts < 1)
+        throw new IllegalArgumentException("attempts has to be positive");
+      this.attempts = attempts;
+      return this;
+    }
+
+    /**
+     * @param backoff the milliseconds before the first retry, which double
+     * with every further retry up to maximumBackoff. Each wait is randomized
+     * between half and the full backoff. The defaults are 500 and 8000.
+     */
+    public Builder setBackoff(long backoff, long maximumBackoff) {
+      if (backoff < 0 || maximumBackoff < backoff)
+        throw new IllegalArgumentException("backoff has to be between 0 and maximumBackoff");
+      this.backoff = backoff;
+      this.maximumBackoff = maximumBackoff;
+      return this;
+    }
+
+    /**
+     * @param hedgeDelay after how many milliseconds without an answer a
+     * second ls-remote is sent. The default is 0, which does not hedge.
+     */
+    public Builder setHedgeDelay(long hedgeDelay) {
+      if (hedgeDelay < 0)
+        throw new IllegalArgumentException("hedgeDelay is negative");
+      this.hedgeDelay = hedgeDelay;
+      return this;
+    }
+
+    public RemoteOperationPolicy build() {
+      return new RemoteOperationPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.util.FS;
+
+import build.pluto.buildgit.metrics.GitMetrics;
+
+/**
+ * Pool of open repositories keyed by their canonical git directory.
+ *
+ * Every {@link #acquire(File)} has to be paired with a {@link #release(Repository)}.
+ * Repositories that are not in use stay open for later operations until they
+ * are the least recently used ones of a full pool, in which case they get
+ * closed. A repository whose git directory was deleted or replaced since it
+ * was opened gets reopened on the next acquire.
+ */
+public class RepositoryPool {
+
+  public static final String SIZE_PROPERTY = "pluto.git.pool.size";
+
+  private static final RepositoryPool instance = new RepositoryPool(Integer.getInteger(SIZE_PROPERTY, 16));
+
+  public static RepositoryPool getInstance() {
+    return instance;
+  }
+
+  private static class Entry {
+    private final Repository repository;
+    private final Object fileKey;
+    private int references = 0;
+    private boolean evicted = false;
+
+    private Entry(Repository repository, Object fileKey) {
+      this.repository = repository;
+      this.fileKey = fileKey;
+    }
+  }
+
+  private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<Repository, Entry> entriesByRepository = new IdentityHashMap<>();
+  private int maximumSize;
+
+  RepositoryPool(int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  /**
+   * @param directory the working tree or the git directory of the repository.
+   * @return the open repository, which has to be released after use.
+   */
+  public synchronized Repository acquire(File directory) throws IOException {
+    File gitDir = gitDirOf(directory);
+    Object fileKey = fileKeyOf(gitDir);
+    Entry entry = entries.get(gitDir);
+    if (entry != null && (fileKey == null || !fileKey.equals(entry.fileKey))) {
+      remove(gitDir);
+      entry = null;
+    }
+    GitMetrics.cacheAccessed(GitMetrics.CACHE_REPOSITORIES, entry != null);
+    if (entry == null) {
+      Repository repository = open(directory);
+      entry = new Entry(repository, fileKey);
+      entries.put(gitDir, entry);
+      entriesByRepository.put(repository, entry);
+    }
+    entry.references++;
+    evict();
+    return entry.repository;
+  }
+
+  public synchronized void release(Repository repository) {
+    Entry entry = entriesByRepository.get(repository);
+    if (entry == null) {
+      return;
+    }
+    entry.references--;
+    if (entry.references <= 0 && entry.evicted) {
+      close(entry);
+    } else {
+      evict();
+    }
+  }
+
+  /**
+   * Drops the repository of the directory from the pool, e.g. because the
+   * directory is about to be deleted or cloned again.
+   */
+  public synchronized void invalidate(File directory) {
+    try {
+      remove(gitDirOf(directory));
+    } catch (IOException e) {
+      // the directory cannot be in the pool
+    }
+  }
+
+  public synchronized void closeAll() {
+    for (File gitDir : entries.keySet().toArray(new File[entries.size()])) {
+      remove(gitDir);
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized void setMaximumSize(int maximumSize) {
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  public synchronized int getMaximumSize() {
+    return maximumSize;
+  }
+
+  private void remove(File gitDir) {
+    Entry entry = entries.remove(gitDir);
+    if (entry == null) {
+      return;
+    }
+    entry.evicted = true;
+    if (entry.references <= 0) {
+      close(entry);
+    }
+  }
+
+  private void close(Entry entry) {
+    entriesByRepository.remove(entry.repository);
+    entry.repository.close();
+  }
+
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size() > maximumSize && it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.references <= 0) {
+        it.remove();
+        entry.evicted = true;
+        close(entry);
+      }
+    }
+  }
+
+  private static Repository open(File directory) throws IOException {
+    FileRepositoryBuilder builder = new FileRepositoryBuilder().setMustExist(true);
+    if (new File(directory, Constants.DOT_GIT).exists()) {
+      builder.setWorkTree(directory);
+    } else {
+      builder.setGitDir(directory);
+    }
+    return builder.build();
+  }
+
+  private static File gitDirOf(File directory) throws IOException {
+    File dotGit = new File(directory, Constants.DOT_GIT);
+    if (dotGit.exists() || !RepositoryCache.FileKey.isGitRepository(directory, FS.DETECTED)) {
+      return dotGit.getCanonicalFile();
+    }
+    return directory.getCanonicalFile();
+  }
+
+  /**
+   * Identifies the incarnation of a git directory. Inodes get reused quickly
+   * when a repository is deleted and created again, hence the key also
+   * covers the config file, which is written when a repository is created.
+   */
+  private static Object fileKeyOf(File gitDir) {
+    try {
+      BasicFileAttributes gitDirAttributes = Files.readAttributes(gitDir.toPath(), BasicFileAttributes.class);
+      File config = new File(gitDir, Constants.CONFIG);
+      if (!config.exists()) {
+        return Arrays.asList(gitDirAttributes.fileKey(), gitDirAttributes.creationTime());
+      }
+      BasicFileAttributes configAttributes = Files.readAttributes(config.toPath(), BasicFileAttributes.class);
+      return Arrays.asList(gitDirAttributes.fileKey(), configAttributes.fileKey(), configAttributes.lastModifiedTime());
+    } catch (IOException e) {
+      return null;
+    }
+  }
+}
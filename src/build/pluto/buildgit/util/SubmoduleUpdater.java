@@ -0,0 +1,287 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.FileUtils;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
+
+/**
+ * Clones and updates the submodules of a repository concurrently.
+ *
+ * Only submodules whose gitlink changed between the previous and the current
+ * HEAD of the superproject, and submodules that were not cloned yet, get
+ * updated. Nested submodules get updated recursively. All updates, also of
+ * nested submodules and of different superprojects, share at most
+ * {@value #DEFAULT_PARALLELISM} threads, which can be changed with the system
+ * property {@value #PARALLELISM_PROPERTY}. If no thread is free, a submodule
+ * gets updated by the thread updating its superproject.
+ */
+public class SubmoduleUpdater {
+
+  public static final String PARALLELISM_PROPERTY = "pluto.git.submodules.parallelism";
+
+  private static final int DEFAULT_PARALLELISM = 8;
+
+  private static final int PARALLELISM = Math.max(1, Integer.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM));
+
+  // bounds the threads of executor, which only runs tasks holding a permit
+  private static final Semaphore threads = new Semaphore(PARALLELISM);
+
+  private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "pluto-git-submodules");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private static class Submodule {
+    private final String path;
+    private final File directory;
+    private final File gitDir;
+    private final String url;
+    private final ObjectId commit;
+
+    private Submodule(String path, File directory, File gitDir, String url, ObjectId commit) {
+      this.path = path;
+      this.directory = directory;
+      this.gitDir = gitDir;
+      this.url = url;
+      this.commit = commit;
+    }
+  }
+
+  /**
+   * Initializes the submodules of repo and updates the ones whose gitlink in
+   * HEAD differs from the one in oldHead.
+   *
+   * @param oldHead the commit the superproject was at before, or null to
+   * update all submodules.
+   */
+  public static void update(Repository repo, ObjectId oldHead) throws GitException {
+    update(repo, oldHead, RemoteOperationPolicy.getDefault());
+  }
+
+  /**
+   * Updates the submodules like {@link #update(Repository, ObjectId)}, cloning
+   * and fetching them with the timeouts and retries of policy.
+   */
+  public static void update(Repository repo, ObjectId oldHead, final RemoteOperationPolicy policy) throws GitException {
+    List<Submodule> submodules;
+    try {
+      if (!SubmoduleWalk.containsGitModulesFile(repo)) {
+        return;
+      }
+      new Git(repo).submoduleInit().call();
+      submodules = changedSubmodules(repo, oldHead);
+    } catch (GitAPIException | IOException | ConfigInvalidException e) {
+      throw new GitException("Initialization of submodules of " + repo.getWorkTree() + " failed", e);
+    }
+    if (submodules.isEmpty()) {
+      return;
+    }
+
+    List<Future<Void>> results = new ArrayList<>();
+    List<Submodule> inline = new ArrayList<>();
+    for (final Submodule submodule : submodules) {
+      if (!threads.tryAcquire()) {
+        inline.add(submodule);
+        continue;
+      }
+      try {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws GitException {
+            try {
+              update(submodule, policy);
+              return null;
+            } finally {
+              threads.release();
+            }
+          }
+        }));
+      } catch (RuntimeException e) {
+        threads.release();
+        throw e;
+      }
+    }
+    GitException failure = null;
+    for (Submodule submodule : inline) {
+      try {
+        update(submodule, policy);
+      } catch (GitException e) {
+        if (failure == null)
+          failure = e;
+      }
+    }
+    for (Future<Void> result : results) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        if (failure == null)
+          failure = e.getCause() instanceof GitException ? (GitException) e.getCause() : new GitException("Update of submodule failed", e.getCause());
+      } catch (InterruptedException e) {
+        for (Future<Void> r : results)
+          r.cancel(true);
+        Thread.currentThread().interrupt();
+        throw new GitException("Update of submodules of " + repo.getWorkTree() + " was interrupted", e);
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  private static void delete(File file) {
+    try {
+      FileUtils.delete(file, FileUtils.RECURSIVE | FileUtils.RETRY | FileUtils.SKIP_MISSING);
+    } catch (IOException e) {
+      // the next attempt fails on the leftovers
+    }
+  }
+
+  /**
+   * @return the number of threads that are free to update submodules.
+   */
+  static int freeThreads() {
+    return threads.availablePermits();
+  }
+
+  /**
+   * @return true if directory contains a repository with a HEAD commit, also
+   * if its .git is a file pointing to the git directory as for submodules.
+   */
+  public static boolean isCloned(File directory) {
+    return LocalRepositoryState.read(directory).getHeadHash() != null;
+  }
+
+  private static List<Submodule> changedSubmodules(Repository repo, ObjectId oldHead) throws IOException, ConfigInvalidException {
+    List<Submodule> submodules = new ArrayList<>();
+    ObjectId oldTree = null;
+    if (oldHead != null) {
+      try (RevWalk revWalk = new RevWalk(repo)) {
+        oldTree = revWalk.parseCommit(oldHead).getTree();
+      }
+    }
+    try (SubmoduleWalk walk = SubmoduleWalk.forIndex(repo)) {
+      while (walk.next()) {
+        String url = walk.getConfigUrl();
+        if (url == null) {
+          continue;
+        }
+        if (isCloned(walk.getDirectory()) && oldTree != null && walk.getObjectId().equals(gitlinkOf(repo, walk.getPath(), oldTree))) {
+          continue;
+        }
+        File gitDir = new File(new File(repo.getDirectory(), Constants.MODULES), walk.getPath());
+        submodules.add(new Submodule(walk.getPath(), walk.getDirectory(), gitDir, url, walk.getObjectId()));
+      }
+    }
+    return submodules;
+  }
+
+  private static ObjectId gitlinkOf(Repository repo, String path, ObjectId tree) throws IOException {
+    try (TreeWalk treeWalk = TreeWalk.forPath(repo, path, tree)) {
+      if (treeWalk == null || treeWalk.getFileMode(0) != FileMode.GITLINK) {
+        return null;
+      }
+      return treeWalk.getObjectId(0);
+    }
+  }
+
+  private static void update(final Submodule submodule, RemoteOperationPolicy policy) throws GitException {
+    boolean cloned = isCloned(submodule.directory);
+    try {
+      if (!cloned) {
+        policy.execute(submodule.url, new Attempt<Void, GitAPIException>() {
+          @Override
+          public Void run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+            try {
+              Git.cloneRepository()
+                  .setURI(submodule.url)
+                  .setDirectory(submodule.directory)
+                  .setGitDir(submodule.gitDir)
+                  .setNoCheckout(true)
+                  .setProgressMonitor(monitor)
+                  .setTimeout(timeout)
+                  .call()
+                  .close();
+              return null;
+            } catch (GitAPIException | RuntimeException e) {
+              // the next attempt needs to start from scratch
+              delete(submodule.gitDir);
+              delete(new File(submodule.directory, Constants.DOT_GIT));
+              throw e;
+            }
+          }
+        });
+      }
+    } catch (GitAPIException e) {
+      throw new GitException("Clone of submodule " + submodule.path + " from " + submodule.url + " failed", e);
+    }
+
+    Repository repo;
+    try {
+      repo = RepositoryPool.getInstance().acquire(submodule.directory);
+    } catch (IOException e) {
+      throw new GitException("Cannot open submodule " + submodule.path, e);
+    }
+    try {
+      final Git git = new Git(repo);
+      ObjectId oldHead = repo.resolve(Constants.HEAD);
+      if (!repo.hasObject(submodule.commit)) {
+        policy.execute(submodule.url, new Attempt<Void, GitAPIException>() {
+          @Override
+          public Void run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+            git.fetch()
+                .setRemote(Constants.DEFAULT_REMOTE_NAME)
+                .setProgressMonitor(monitor)
+                .setTimeout(timeout)
+                .call();
+            return null;
+          }
+        });
+      }
+      if (cloned) {
+        git.checkout()
+            .setName(submodule.commit.name())
+            .call();
+      } else {
+        RefUpdate update = repo.updateRef(Constants.HEAD, true);
+        update.setNewObjectId(submodule.commit);
+        update.forceUpdate();
+        git.reset()
+            .setMode(ResetCommand.ResetType.HARD)
+            .call();
+      }
+      update(repo, cloned ? oldHead : null, policy);
+    } catch (GitAPIException | IOException e) {
+      throw new GitException("Update of submodule " + submodule.path + " to " + submodule.commit.name() + " failed", e);
+    } finally {
+      RepositoryPool.getInstance().release(repo);
+    }
+  }
+}
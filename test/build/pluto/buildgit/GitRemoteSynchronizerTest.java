@@ -196,6 +196,22 @@ public class GitRemoteSynchronizerTest extends ScopedBuildTest {
     assertCorrectHead(masterHeadHash);
   }
 
+  @Test
+  public void testWorkspaceSynchronizesAllRepositories() throws Throwable {
+    File master = new File(directory, "master");
+    File feature = new File(directory, "feature");
+    GitWorkspaceInput input = new GitWorkspaceInput
+        .Builder(new File(directory, "workspace.dep"))
+        .addInput(new GitInput.Builder(master, getPathOfRemote()).build())
+        .addInput(new GitInput.Builder(feature, getPathOfRemote()).setBranch("feature").build())
+        .setParallelism(2)
+        .build();
+    BuildRequest<?, ?, ?, ?> buildRequest = new BuildRequest(GitWorkspaceSynchronizer.factory, input);
+    BuildManagers.build(buildRequest);
+    assertEquals(masterHeadHash, GitHandler.getHashOfHEAD(master));
+    assertEquals(featureHeadHash, GitHandler.getHashOfHEAD(feature));
+  }
+
   private void build() throws Throwable {
     GitInput input = new GitInput
         .Builder(directory, getPathOfRemote())
@@ -0,0 +1,91 @@
+package build.pluto.buildgit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.util.GitHandler;
+import build.pluto.buildgit.util.PathFilters;
+
+public class GitSyncOutputTest {
+
+  private final File directory = new File("syncoutputtest");
+  private Git git;
+  private String first;
+  private String second;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    git = Git.init().setDirectory(directory).call();
+    write("keep.txt", "keep");
+    write("src/change.txt", "old");
+    write("src/delete.txt", "delete");
+    write("doc/readme.txt", "old");
+    git.add().addFilepattern(".").call();
+    first = git.commit().setMessage("first").call().name();
+    write("src/change.txt", "new");
+    write("src/added.txt", "added");
+    write("doc/readme.txt", "new");
+    git.add().addFilepattern(".").call();
+    git.rm().addFilepattern("src/delete.txt").call();
+    second = git.commit().setMessage("second").call().name();
+  }
+
+  @After
+  public void destroy() {
+    git.close();
+    try {
+      FileCommands.delete(directory);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkChangedPathsAreListed() throws GitException {
+    GitSyncOutput output = GitSyncOutput.of(first, second, GitHandler.getChangedPaths(directory, first, second, TreeFilter.ALL));
+    assertEquals(Arrays.asList("src/added.txt"), output.added);
+    assertEquals(Arrays.asList("doc/readme.txt", "src/change.txt"), output.modified);
+    assertEquals(Arrays.asList("src/delete.txt"), output.deleted);
+    assertTrue(output.isChanged("src"));
+    assertTrue(output.isChanged("src/delete.txt"));
+    assertFalse(output.isChanged("keep.txt"));
+    assertFalse(output.isChanged("sr"));
+  }
+
+  @Test
+  public void checkChangedPathsAreFiltered() throws GitException {
+    TreeFilter filter = PathFilters.create(Arrays.asList("src"), Arrays.asList("src/delete.txt"));
+    GitSyncOutput output = GitSyncOutput.of(first, second, GitHandler.getChangedPaths(directory, first, second, filter));
+    assertEquals(Arrays.asList("src/added.txt"), output.added);
+    assertEquals(Arrays.asList("src/change.txt"), output.modified);
+    assertTrue(output.deleted.isEmpty());
+    assertFalse(output.isChanged("doc"));
+  }
+
+  @Test
+  public void checkCloneChangesEverything() {
+    GitSyncOutput output = new GitSyncOutput(null, second, Collections.<String>emptyList(), Collections.<String>emptyList(), Collections.<String>emptyList());
+    assertTrue(output.isClone());
+    assertFalse(output.isUnchanged());
+    assertTrue(output.isChanged("keep.txt"));
+  }
+
+  private void write(String path, String content) throws IOException {
+    FileCommands.writeToFile(new File(directory, path), content);
+  }
+}
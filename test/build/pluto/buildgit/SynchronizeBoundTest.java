@@ -0,0 +1,76 @@
+package build.pluto.buildgit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.bound.BranchBound;
+import build.pluto.buildgit.util.LocalRemote;
+
+public class SynchronizeBoundTest {
+
+  private final File baseDir = new File("synchronizeboundtest");
+  private final File cloneDir = new File(baseDir, "clone");
+  private LocalRemote remote;
+  private RevCommit masterHead;
+  private RevCommit otherHead;
+  private GitInput input;
+
+  @Before
+  public void init() throws GitAPIException, GitException, IOException {
+    remote = new LocalRemote(new File(baseDir, "remote"));
+    masterHead = remote.commit("file.txt", "master");
+    remote.checkout("other", true);
+    otherHead = remote.commit("other.txt", "other");
+    remote.checkout("master", false);
+    input = new GitInput.Builder(cloneDir, remote.url()).setBound(new BranchBound(remote.url(), "other")).build();
+    GitRemoteSynchronizer.synchronize(input);
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    try {
+      FileCommands.delete(baseDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkSyncIsSkippedWhenBoundIsUnchanged() throws GitAPIException, GitException, IOException {
+    remote.commit("file.txt", "changed master");
+    GitRemoteSynchronizer.synchronize(input);
+    assertEquals(otherHead, resolve(Constants.HEAD));
+    // nothing was fetched, so the tracking ref of master did not move
+    assertEquals(masterHead, resolve("refs/remotes/origin/master"));
+  }
+
+  @Test
+  public void checkSyncAdvancesToBoundInsteadOfRemoteHead() throws GitAPIException, GitException, IOException {
+    remote.commit("file.txt", "changed master");
+    remote.checkout("other", false);
+    RevCommit newOtherHead = remote.commit("other.txt", "changed other");
+    remote.checkout("master", false);
+    GitRemoteSynchronizer.synchronize(input);
+    assertEquals(newOtherHead, resolve(Constants.HEAD));
+  }
+
+  private ObjectId resolve(String revision) throws IOException {
+    try (Git git = Git.open(cloneDir)) {
+      return git.getRepository().resolve(revision);
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package build.pluto.buildgit.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InMemoryGitMetricsTest {
+
+  private InMemoryGitMetrics metrics;
+
+  @Before
+  public void init() {
+    metrics = new InMemoryGitMetrics();
+    GitMetrics.addListener(metrics);
+  }
+
+  @After
+  public void destroy() {
+    GitMetrics.removeListener(metrics);
+  }
+
+  @Test
+  public void checkRecordsOperations() {
+    GitMetrics.Timer timer = GitMetrics.start(GitOperation.FETCH, "url");
+    timer.succeeded();
+    timer.stop();
+    GitMetrics.start(GitOperation.FETCH, "url").stop();
+    GitMetrics.start(GitOperation.MERGE, "dir").stop();
+    assertEquals(Long.valueOf(2), metrics.getOperationCounts().get("FETCH"));
+    assertEquals(Long.valueOf(1), metrics.getOperationFailures().get("FETCH"));
+    assertEquals(Long.valueOf(1), metrics.getOperationCounts().get("MERGE"));
+    assertTrue(metrics.getMeanRemoteLatencyMillis().containsKey("url"));
+    assertTrue(!metrics.getMeanRemoteLatencyMillis().containsKey("dir"));
+  }
+
+  @Test
+  public void checkPercentiles() {
+    for (int i = 0; i < 99; i++)
+      metrics.operationCompleted(GitOperation.LS_REMOTE, "url", TimeUnit.MILLISECONDS.toNanos(3), true);
+    metrics.operationCompleted(GitOperation.LS_REMOTE, "url", TimeUnit.MILLISECONDS.toNanos(1000), true);
+    assertEquals(Long.valueOf(4), metrics.getP50LatencyMillis().get("LS_REMOTE"));
+    assertEquals(Long.valueOf(4), metrics.getP99LatencyMillis().get("LS_REMOTE"));
+    assertEquals(1000.0, metrics.getMaxLatencyMillis().get("LS_REMOTE"), 0.001);
+  }
+
+  @Test
+  public void checkCachesAndFiles() {
+    GitMetrics.cacheAccessed(GitMetrics.CACHE_REPOSITORIES, true);
+    GitMetrics.cacheAccessed(GitMetrics.CACHE_REPOSITORIES, false);
+    GitMetrics.filesProvided(new File("dir"), 42);
+    assertEquals(0.5, metrics.getCacheHitRates().get(GitMetrics.CACHE_REPOSITORIES), 0.001);
+    assertEquals(Long.valueOf(42), metrics.getFilesProvided().get(new File("dir").getAbsolutePath()));
+    metrics.reset();
+    assertTrue(metrics.getCacheHitRates().isEmpty());
+  }
+
+  @Test
+  public void checkCountsReceivedObjects() {
+    ProgressMonitor monitor = GitMetrics.progressMonitor("url");
+    monitor.start(2);
+    // tasks reported by the remote are never ended
+    monitor.beginTask("remote: Counting objects", ProgressMonitor.UNKNOWN);
+    monitor.update(10);
+    monitor.beginTask("Receiving objects", 10);
+    monitor.update(6);
+    monitor.update(4);
+    monitor.endTask();
+    monitor.beginTask("Resolving deltas", 3);
+    monitor.update(3);
+    monitor.endTask();
+    assertEquals(Long.valueOf(10), metrics.getObjectsReceived().get("url"));
+  }
+}
@@ -0,0 +1,103 @@
+package build.pluto.buildgit.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.stamp.Stamp;
+import build.pluto.stamp.ValueStamp;
+
+public class GitBlobStamperTest {
+
+  private final File repoDir = new File("blobstampertest");
+  private final File file = new File(repoDir, "dir/file.txt");
+  private GitBlobStamper stamper;
+
+  @Before
+  public void init() throws GitAPIException, IOException, InterruptedException {
+    Git git = Git.init().setDirectory(repoDir).call();
+    FileCommands.writeToFile(file, "content");
+    // make sure the index is written after the file was last modified
+    Thread.sleep(1100);
+    git.add().addFilepattern(".").call();
+    git.close();
+    stamper = new GitBlobStamper(repoDir);
+  }
+
+  @After
+  public void destroy() {
+    try {
+      FileCommands.delete(repoDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkUnchangedFileHasBlobId() {
+    assertEquals(blobId("content"), stampValue(file));
+  }
+
+  @Test
+  public void checkModifiedFileGetsRehashed() throws IOException {
+    FileCommands.writeToFile(file, "changed content");
+    assertEquals(blobId("changed content"), stampValue(file));
+  }
+
+  @Test
+  public void checkUntrackedFileGetsHashed() throws IOException {
+    File untracked = new File(repoDir, "untracked.txt");
+    FileCommands.writeToFile(untracked, "untracked");
+    assertEquals(blobId("untracked"), stampValue(untracked));
+    assertNotEquals(stampValue(file), stampValue(untracked));
+  }
+
+  @Test
+  public void checkMissingFile() throws IOException {
+    FileCommands.delete(file);
+    assertNull(stampValue(file));
+  }
+
+  @Test
+  public void checkSubmoduleFileIsStampedBySubmodule() throws GitAPIException, IOException {
+    File subRemote = new File("blobstampertest-sub");
+    try {
+      Git remote = Git.init().setDirectory(subRemote).call();
+      FileCommands.writeToFile(new File(subRemote, "sub.txt"), "sub");
+      remote.add().addFilepattern("sub.txt").call();
+      remote.commit().setMessage("sub").call();
+      remote.close();
+      Git git = Git.open(repoDir);
+      git.submoduleAdd().setPath("sub").setURI("file://" + subRemote.getAbsolutePath()).call().close();
+      git.close();
+
+      File subFile = new File(repoDir, "sub/sub.txt");
+      Stamp stamp = stamper.stampOf(subFile);
+      assertEquals(blobId("sub"), ((ValueStamp<?>) stamp).val);
+      assertEquals(new GitBlobStamper(new File(repoDir, "sub")), stamp.getStamper());
+    } finally {
+      FileCommands.delete(subRemote);
+    }
+  }
+
+  private Object stampValue(File f) {
+    return ((ValueStamp<?>) stamper.stampOf(f)).val;
+  }
+
+  private String blobId(String content) {
+    return new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, Constants.encode(content)).name();
+  }
+}
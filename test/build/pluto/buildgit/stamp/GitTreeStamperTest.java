@@ -0,0 +1,115 @@
+package build.pluto.buildgit.stamp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.stamp.ValueStamp;
+
+public class GitTreeStamperTest {
+
+  private final File repoDir = new File("treestampertest");
+  private final File subDir = new File(repoDir, "sub");
+  private final File otherFile = new File(repoDir, "other.txt");
+  private GitTreeStamper stamper;
+  private Git git;
+  private RevCommit commit;
+
+  @Before
+  public void init() throws GitAPIException, IOException, InterruptedException {
+    git = Git.init().setDirectory(repoDir).call();
+    FileCommands.writeToFile(new File(subDir, "file.txt"), "content");
+    FileCommands.writeToFile(otherFile, "other");
+    // make sure the index is written after the files were last modified
+    Thread.sleep(1100);
+    git.add().addFilepattern(".").call();
+    commit = git.commit().setMessage("initial").call();
+    stamper = new GitTreeStamper(repoDir);
+  }
+
+  @After
+  public void destroy() {
+    git.close();
+    try {
+      FileCommands.delete(repoDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkCleanRepositoryIsStampedByCommitAndTree() {
+    assertEquals("commit " + commit.name() + " tree " + commit.getTree().name(), stampValue(repoDir));
+    assertTrue(stampValue(subDir).startsWith("tree "));
+  }
+
+  @Test
+  public void checkChangeOutsideOfSubPath() throws IOException {
+    String rootStamp = stampValue(repoDir);
+    String subStamp = stampValue(subDir);
+    FileCommands.writeToFile(otherFile, "changed");
+    assertNotEquals(rootStamp, stampValue(repoDir));
+    assertEquals(subStamp, stampValue(subDir));
+  }
+
+  @Test
+  public void checkChangeInsideOfSubPath() throws IOException {
+    String subStamp = stampValue(subDir);
+    FileCommands.writeToFile(new File(subDir, "file.txt"), "changed");
+    assertNotEquals(subStamp, stampValue(subDir));
+  }
+
+  @Test
+  public void checkNewCommitChangesStamp() throws IOException, GitAPIException {
+    String rootStamp = stampValue(repoDir);
+    String subStamp = stampValue(subDir);
+    FileCommands.writeToFile(otherFile, "changed");
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("second").call();
+    assertNotEquals(rootStamp, stampValue(repoDir));
+    assertEquals(subStamp, stampValue(subDir));
+  }
+
+  @Test
+  public void checkExcludedPathsAreNotStamped() throws IOException, GitAPIException {
+    File excludedFile = new File(subDir, "generated/gen.txt");
+    FileCommands.writeToFile(excludedFile, "generated");
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("generated").call();
+    stamper = new GitTreeStamper(repoDir, Arrays.asList("sub/generated"));
+    String rootStamp = stampValue(repoDir);
+    String subStamp = stampValue(subDir);
+
+    FileCommands.writeToFile(excludedFile, "changed");
+    assertEquals(rootStamp, stampValue(repoDir));
+    assertEquals(subStamp, stampValue(subDir));
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("regenerated").call();
+    assertEquals(rootStamp, stampValue(repoDir));
+    assertEquals(subStamp, stampValue(subDir));
+
+    FileCommands.writeToFile(new File(subDir, "file.txt"), "changed");
+    assertNotEquals(subStamp, stampValue(subDir));
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("second").call();
+    assertNotEquals(rootStamp, stampValue(repoDir));
+    assertNotEquals(subStamp, stampValue(subDir));
+  }
+
+  private String stampValue(File f) {
+    return (String) ((ValueStamp<?>) stamper.stampOf(f)).val;
+  }
+}
@@ -0,0 +1,108 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.bound.BranchBound;
+import build.pluto.buildgit.bound.CommitHashBound;
+import build.pluto.buildgit.bound.TagBound;
+import build.pluto.buildgit.bound.UpdateBound;
+
+public class FetchBoundOnlyTest {
+
+  private final File baseDir = new File("fetchboundonlytest");
+  private final File cloneDir = new File(baseDir, "clone");
+  private LocalRemote remote;
+  private RevCommit tagged;
+  private RevCommit masterHead;
+  private RevCommit otherHead;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    remote = new LocalRemote(new File(baseDir, "remote"));
+    tagged = remote.commit("file.txt", "first");
+    remote.tag("v1");
+    masterHead = remote.commit("file.txt", "second");
+    remote.checkout("other", true);
+    otherHead = remote.commit("other.txt", "other");
+    remote.checkout("master", false);
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    try {
+      FileCommands.delete(baseDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkBranchBoundFetchesOnlyTheBranch() throws GitException, IOException, GitAPIException {
+    GitInput input = inputOf(new BranchBound(remote.url(), "master"));
+    GitHandler.cloneRepository(input);
+    try (Git clone = Git.open(cloneDir)) {
+      Repository repo = clone.getRepository();
+      assertEquals(masterHead, repo.resolve(Constants.HEAD));
+      assertEquals(Constants.R_HEADS + "master", repo.getFullBranch());
+      assertNotNull(repo.getRef("refs/remotes/origin/master"));
+      assertNull(repo.getRef("refs/remotes/origin/other"));
+    }
+
+    RevCommit newMasterHead = remote.commit("file.txt", "third");
+    remote.checkout("other", false);
+    remote.commit("other.txt", "changed");
+    remote.checkout("master", false);
+    GitHandler.pull(input);
+    try (Git clone = Git.open(cloneDir)) {
+      Repository repo = clone.getRepository();
+      assertEquals(newMasterHead, repo.resolve(Constants.HEAD));
+      assertNull(repo.getRef("refs/remotes/origin/other"));
+    }
+  }
+
+  @Test
+  public void checkTagBoundFetchesOnlyTheTag() throws GitException, IOException {
+    GitHandler.cloneRepository(inputOf(new TagBound(remote.url(), "v1")));
+    try (Git clone = Git.open(cloneDir)) {
+      Repository repo = clone.getRepository();
+      assertEquals(tagged, repo.resolve(Constants.HEAD));
+      assertNotNull(repo.getRef(Constants.R_TAGS + "v1"));
+      assertNull(repo.getRef("refs/remotes/origin/master"));
+      assertNull(repo.getRef("refs/remotes/origin/other"));
+    }
+  }
+
+  @Test
+  public void checkCommitBoundFetchesAllBranches() throws GitException, IOException {
+    GitHandler.cloneRepository(inputOf(new CommitHashBound(tagged.name())));
+    try (Git clone = Git.open(cloneDir)) {
+      Repository repo = clone.getRepository();
+      assertEquals(tagged, repo.resolve(Constants.HEAD));
+      assertEquals(masterHead, repo.resolve("refs/remotes/origin/master"));
+      assertEquals(otherHead, repo.resolve("refs/remotes/origin/other"));
+    }
+  }
+
+  private GitInput inputOf(UpdateBound bound) {
+    return new GitInput.Builder(cloneDir, remote.url()).setBound(bound).setFetchBoundOnly(true).build();
+  }
+}
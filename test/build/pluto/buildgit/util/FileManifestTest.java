@@ -0,0 +1,108 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+
+public class FileManifestTest {
+
+  private final File directory = new File("filemanifesttest");
+  private Git git;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    git = Git.init().setDirectory(directory).call();
+    write("a.txt", "a");
+    write("src/b.txt", "b");
+    write("src/main/c.txt", "c");
+    git.add().addFilepattern(".").call();
+    git.commit().setMessage("first").call();
+  }
+
+  @After
+  public void destroy() {
+    git.close();
+    try {
+      FileCommands.delete(directory);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkListingIsReadFromManifest() throws GitException {
+    assertNull(FileManifest.read(git.getRepository(), ""));
+    List<File> files = GitHandler.getTrackedFilesOfRepo(directory, false);
+    FileManifest manifest = FileManifest.read(git.getRepository(), "");
+    assertNotNull(manifest);
+    assertEquals(3, manifest.size());
+    assertEquals("src/main/c.txt", manifest.getPath(2));
+    assertEquals(files, GitHandler.getTrackedFilesOfRepo(directory, false));
+  }
+
+  @Test
+  public void checkManifestIsKeyedByFilter() throws GitException {
+    List<String> includePaths = Arrays.asList("src");
+    List<String> excludePaths = Collections.singletonList("src/main");
+    GitHandler.getTrackedFilesOfRepo(directory, false);
+    assertNull(FileManifest.read(git.getRepository(), PathFilters.keyOf(includePaths, excludePaths)));
+    assertEquals(Arrays.asList(new File(directory, "src/b.txt")), GitHandler.getTrackedFilesOfRepo(directory, false, includePaths, excludePaths));
+    assertNotNull(FileManifest.read(git.getRepository(), PathFilters.keyOf(includePaths, excludePaths)));
+    assertEquals(Arrays.asList(new File(directory, "src/b.txt")), GitHandler.getTrackedFilesOfRepo(directory, false, includePaths, excludePaths));
+    assertEquals(Collections.<File>emptyList(), GitHandler.getTrackedFilesOfRepo(directory, false, includePaths, Arrays.asList("src/main", "src/b.txt")));
+  }
+
+  @Test
+  public void checkManifestSurvivesRewrittenIndex() throws GitException, GitAPIException, IOException {
+    GitHandler.getTrackedFilesOfRepo(directory, false);
+    write("a.txt", "changed");
+    git.add().addFilepattern("a.txt").call();
+    write("a.txt", "a");
+    git.add().addFilepattern("a.txt").call();
+    assertNotNull(FileManifest.read(git.getRepository(), ""));
+  }
+
+  @Test
+  public void checkStagedFilesInvalidateManifest() throws GitException, GitAPIException, IOException {
+    GitHandler.getTrackedFilesOfRepo(directory, false);
+    write("d.txt", "d");
+    git.add().addFilepattern("d.txt").call();
+    assertNull(FileManifest.read(git.getRepository(), ""));
+    assertEquals(4, GitHandler.getTrackedFilesOfRepo(directory, false).size());
+
+    git.commit().setMessage("second").call();
+    assertNull(FileManifest.read(git.getRepository(), ""));
+    assertEquals(4, GitHandler.getTrackedFilesOfRepo(directory, false).size());
+    assertNotNull(FileManifest.read(git.getRepository(), ""));
+  }
+
+  @Test
+  public void checkBrokenManifestIsIgnored() throws GitException, IOException {
+    GitHandler.getTrackedFilesOfRepo(directory, false);
+    File[] manifests = new File(git.getRepository().getDirectory(), FileManifest.DIRECTORY).listFiles();
+    assertEquals(1, manifests.length);
+    FileCommands.writeToFile(manifests[0], "broken");
+    assertNull(FileManifest.read(git.getRepository(), ""));
+    assertEquals(3, GitHandler.getTrackedFilesOfRepo(directory, false).size());
+  }
+
+  private void write(String path, String content) throws IOException {
+    FileCommands.writeToFile(new File(directory, path), content);
+  }
+}
@@ -33,6 +33,19 @@ public class FileUtilTest {
         }
     }
 
+    @Test
+    public void checkDirectoryWithEmptySubdirectoriesIsEmpty() {
+        try {
+            FileCommands.createDir(new File(this.testDir, "sub/subsub").toPath());
+            FileCommands.createDir(new File(this.testDir, "other").toPath());
+            assertTrue(FileUtil.isDirectoryEmpty(this.testDir));
+            FileCommands.createFile(new File(this.testDir, "sub/subsub/test.txt"));
+            assertFalse(FileUtil.isDirectoryEmpty(this.testDir));
+        } catch (IOException e) {
+            fail("Could not create temporary directory");
+        }
+    }
+
     @Test
     public void checkDirectoryContainsDotFile() {
         try {
@@ -0,0 +1,53 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportProtocol;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Transport for flaky:// urls of local repositories, whose first connections
+ * fail as if they were reset. Has to be registered with
+ * {@link Transport#register(TransportProtocol)} while in use.
+ */
+public class FlakyProtocol extends TransportProtocol {
+
+  public final AtomicInteger connections = new AtomicInteger();
+  private final int failures;
+
+  /**
+   * @param failures how many connections fail before they succeed.
+   */
+  public FlakyProtocol(int failures) {
+    this.failures = failures;
+  }
+
+  public static String url(File repository) {
+    return "flaky://" + repository.getAbsolutePath();
+  }
+
+  @Override
+  public String getName() {
+    return "flaky";
+  }
+
+  @Override
+  public Set<String> getSchemes() {
+    return Collections.singleton("flaky");
+  }
+
+  @Override
+  public Transport open(URIish uri, Repository local, String remoteName) throws NotSupportedException, TransportException {
+    if (connections.incrementAndGet() <= failures)
+      throw new TransportException(uri, "connection reset", new SocketException("Connection reset"));
+    return Transport.open(local, uri.setScheme("file"));
+  }
+}
@@ -2,13 +2,16 @@ package build.pluto.buildgit.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.InvalidRefNameException;
@@ -220,6 +223,21 @@ public class GitHandlerTest {
     assertEquals(featureHeadHash, s);
   }
 
+  @Test
+  public void checkGetHashesOfBounds() {
+    UpdateBound master = new BranchBound(dummyPath, "master");
+    UpdateBound feature = new BranchBound(dummyPath, "feature");
+    UpdateBound tag = new TagBound(dummyPath, "v0.1");
+    UpdateBound commit = new CommitHashBound(featureHeadHash);
+    UpdateBound missing = new BranchBound(dummyPath, "mast");
+    Map<UpdateBound, String> hashes = GitHandler.getHashesOfBounds(dummyPath, Arrays.asList(master, feature, tag, commit, missing));
+    assertEquals(masterHeadHash, hashes.get(master));
+    assertEquals(featureHeadHash, hashes.get(feature));
+    assertEquals(tagHash, hashes.get(tag));
+    assertEquals(featureHeadHash, hashes.get(commit));
+    assertNull(hashes.get(missing));
+  }
+
   @Test
   public void checkGetNotIgnoredFilesOfRepoCorrectSize() throws GitException {
     clone(in);
@@ -255,6 +273,50 @@ public class GitHandlerTest {
     }
   }
 
+  @Test
+  public void checkGetTrackedFilesOfRepo() throws GitException {
+    clone(in);
+    try {
+      File dummyFile = new File(in.directory, "dummyFile.txt");
+      FileCommands.createFile(dummyFile);
+      File tempDir = new File(in.directory, "temp");
+      FileCommands.createDir(tempDir.toPath());
+      FileCommands.createFile(new File(tempDir, "ok.txt"));
+      assertEquals(2, GitHandler.getTrackedFilesOfRepo(in.directory, false).size());
+      List<File> foundFiles = GitHandler.getTrackedFilesOfRepo(in.directory, true);
+      assertEquals(3, foundFiles.size());
+      assertTrue(foundFiles.contains(dummyFile));
+    } catch (IOException e) {
+      fail("Could not create file");
+    }
+  }
+
+  @Test
+  public void checkCloneThroughMirror() throws IOException {
+    File mirrorDirectory = new File("testMirrors");
+    File otherDirectory = new File("testLocalOther");
+    try {
+      in = new GitInput.Builder(in.directory, dummyPath).addBranchToClone("feature").setMirrorDirectory(mirrorDirectory).build();
+      GitInput other = new GitInput.Builder(otherDirectory, dummyPath).setBound(new TagBound(dummyPath, "v0.1")).setMirrorDirectory(mirrorDirectory).build();
+      clone(in);
+      clone(other);
+      assertEquals(1, mirrorDirectory.list().length);
+      assertEquals(masterHeadHash, GitHandler.getHashOfHEAD(in.directory));
+      assertEquals(tagHash, GitHandler.getHashOfHEAD(other.directory));
+      File alternates = new File(in.directory, ".git/objects/info/alternates");
+      assertTrue(alternates.exists());
+      File packs = new File(in.directory, ".git/objects/pack");
+      assertTrue(!packs.exists() || packs.list().length == 0);
+      GitHandler.pull(in);
+      assertEquals(masterHeadHash, GitHandler.getHashOfHEAD(in.directory));
+    } catch (GitException e) {
+      fail("Could not use mirror");
+    } finally {
+      FileCommands.delete(otherDirectory);
+      FileCommands.delete(mirrorDirectory);
+    }
+  }
+
   private void clone(GitInput input) {
     try {
       GitHandler.cloneRepository(input);
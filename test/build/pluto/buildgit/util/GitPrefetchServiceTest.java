@@ -0,0 +1,170 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.GitRemoteSynchronizer;
+
+public class GitPrefetchServiceTest {
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final String TRACKING_REF = "refs/remotes/origin/master";
+
+  private final File baseDir = new File("gitprefetchservicetest");
+  private final GitPrefetchService service = GitPrefetchService.getInstance();
+  private File remoteDir;
+  private File cloneDir;
+  private LocalRemote remote;
+  private GitInput input;
+
+  @Before
+  public void init() throws GitAPIException, GitException, IOException {
+    // every test uses its own url, so failures do not mark the others as
+    // unreachable
+    File testDir = new File(baseDir, Long.toString(System.nanoTime()));
+    remoteDir = new File(testDir, "remote");
+    cloneDir = new File(testDir, "clone");
+    remote = new LocalRemote(remoteDir);
+    remote.commit("file.txt", "1");
+    input = new GitInput.Builder(cloneDir, remote.url()).build();
+    GitRemoteSynchronizer.synchronize(input);
+  }
+
+  @After
+  public void destroy() {
+    service.stop();
+    service.unregister(cloneDir);
+    remote.close();
+    try {
+      FileCommands.delete(baseDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void checkPrefetchIsUsedBySync() throws GitAPIException, GitException, IOException {
+    RevCommit commit = remote.commit("file.txt", "2");
+    service.start(HOUR);
+    assertTrue(service.prefetch(input));
+    assertNotNull(service.getPrefetchedRefs(cloneDir, input.url));
+
+    // the sync has to merge what was prefetched, the remote is gone
+    remote.close();
+    assertTrue(remoteDir.renameTo(new File(remoteDir.getParentFile(), "moved")));
+    GitRemoteSynchronizer.synchronize(input);
+    assertEquals(commit, resolve(Constants.HEAD));
+  }
+
+  @Test(timeout = 60000)
+  public void checkPrefetchIsSkippedWhileRepositoryIsLocked() throws InterruptedException {
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread sync = new Thread() {
+      @Override
+      public void run() {
+        service.lock(cloneDir);
+        try {
+          locked.countDown();
+          release.await();
+        } catch (InterruptedException e) {
+          // ends the thread
+        } finally {
+          service.unlock(cloneDir);
+        }
+      }
+    };
+    sync.start();
+    locked.await();
+    try {
+      assertFalse(service.prefetch(input));
+    } finally {
+      release.countDown();
+      sync.join();
+    }
+    assertTrue(service.prefetch(input));
+  }
+
+  @Test(timeout = 60000)
+  public void checkDeletedRepositoryIsForgotten() throws IOException {
+    GitPrefetchService idle = new GitPrefetchService();
+    idle.register(input);
+    idle.prefetchAll();
+    assertEquals(1, idle.getTracked().size());
+
+    FileCommands.delete(cloneDir);
+    idle.prefetchAll();
+    assertTrue(idle.getTracked().isEmpty());
+  }
+
+  @Test(timeout = 60000)
+  public void checkInterruptedRoundIsCancelled() throws GitAPIException, IOException {
+    ObjectId fetched = resolve(TRACKING_REF);
+    RevCommit commit = remote.commit("file.txt", "2");
+    // a service of its own does not run rounds in the background
+    GitPrefetchService idle = new GitPrefetchService();
+    idle.register(input);
+    Thread.currentThread().interrupt();
+    try {
+      idle.prefetchAll();
+    } finally {
+      Thread.interrupted();
+    }
+    assertEquals(fetched, resolve(TRACKING_REF));
+    idle.prefetchAll();
+    assertEquals(commit, resolve(TRACKING_REF));
+  }
+
+  @Test(timeout = 60000)
+  public void checkStopShutsDownAndForgetsPrefetches() throws GitAPIException, GitException, IOException, InterruptedException {
+    service.start(HOUR);
+    assertTrue(service.prefetch(input));
+    assertNotNull(service.getPrefetchedRefs(cloneDir, input.url));
+
+    service.stop();
+    assertFalse(service.isRunning());
+    assertNull(service.getPrefetchedRefs(cloneDir, input.url));
+    while (prefetchThreadIsAlive())
+      Thread.sleep(10);
+
+    // without the service, the sync fetches from the remote again
+    RevCommit commit = remote.commit("file.txt", "2");
+    GitRemoteSynchronizer.synchronize(input);
+    assertEquals(commit, resolve(Constants.HEAD));
+  }
+
+  private static boolean prefetchThreadIsAlive() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals("pluto-git-prefetch") && thread.isAlive())
+        return true;
+    }
+    return false;
+  }
+
+  private ObjectId resolve(String revision) throws IOException {
+    try (Git git = Git.open(cloneDir)) {
+      return git.getRepository().resolve(revision);
+    }
+  }
+}
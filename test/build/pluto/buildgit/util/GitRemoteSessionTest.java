@@ -0,0 +1,93 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.RefSpec;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+
+public class GitRemoteSessionTest {
+
+  private static final String TRACKING_REF = "refs/remotes/origin/master";
+
+  private final File root = new File("gitremotesessiontest");
+  private final File cloneDir = new File(root, "clone");
+  private LocalRemote remote;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    remote = new LocalRemote(new File(root, "remote"));
+    remote.commit("file.txt", "1");
+    Git.cloneRepository().setURI(remote.url()).setDirectory(cloneDir).call().close();
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    try {
+      FileCommands.delete(root);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkFetchUpdatesTrackingRef() throws GitAPIException, GitException, IOException {
+    RevCommit commit = remote.commit("file.txt", "2");
+    fetch("+refs/heads/*:refs/remotes/origin/*");
+    assertEquals(commit, resolve(TRACKING_REF));
+  }
+
+  @Test
+  public void checkNonFastForwardNeedsForce() throws GitAPIException, GitException, IOException {
+    remote.commit("file.txt", "2");
+    fetch("+refs/heads/*:refs/remotes/origin/*");
+    remote.git.reset().setMode(ResetCommand.ResetType.HARD).setRef("HEAD~1").call();
+    RevCommit rewritten = remote.commit("other.txt", "3");
+    try {
+      fetch("refs/heads/*:refs/remotes/origin/*");
+      fail("Non fast-forward update of " + TRACKING_REF + " was not rejected");
+    } catch (GitException e) {
+      // expected
+    }
+    fetch("+refs/heads/*:refs/remotes/origin/*");
+    assertEquals(rewritten, resolve(TRACKING_REF));
+  }
+
+  @Test
+  public void checkTagsOfIntermediateCommitsAreFollowed() throws GitAPIException, GitException, IOException {
+    RevCommit tagged = remote.commit("file.txt", "2");
+    remote.tag("v1");
+    remote.commit("file.txt", "3");
+    fetch("+refs/heads/*:refs/remotes/origin/*");
+    assertNotNull(resolve("refs/tags/v1"));
+    assertEquals(tagged, resolve("refs/tags/v1^{commit}"));
+  }
+
+  private void fetch(String refSpec) throws GitException {
+    try (GitRemoteSession session = GitRemoteSession.open(cloneDir, remote.url())) {
+      session.fetch(Collections.singletonList(new RefSpec(refSpec)));
+    }
+  }
+
+  private Object resolve(String revision) throws IOException {
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      return repo.resolve(revision);
+    }
+  }
+}
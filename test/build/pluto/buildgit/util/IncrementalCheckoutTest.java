@@ -0,0 +1,141 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+public class IncrementalCheckoutTest {
+
+  private final File baseDir = new File("incrementalcheckouttest");
+  private final File remoteDir = new File(baseDir, "remote");
+  private final File cloneDir = new File(baseDir, "clone");
+  private Git remote;
+  private Git clone;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    remote = Git.init().setDirectory(remoteDir).call();
+    write(remoteDir, "keep.txt", "keep");
+    write(remoteDir, "change.txt", "old");
+    write(remoteDir, "delete.txt", "delete");
+    write(remoteDir, "dir/deleted/file.txt", "deleted dir");
+    remote.add().addFilepattern(".").call();
+    remote.commit().setMessage("first").call();
+    clone = Git.cloneRepository().setURI(remoteDir.toURI().toString()).setDirectory(cloneDir).call();
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    clone.close();
+    try {
+      FileCommands.delete(baseDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkOnlyChangedPathsAreRewritten() throws GitAPIException, IOException {
+    long keepModified = new File(cloneDir, "keep.txt").lastModified();
+    RevCommit target = commitChangesOnRemote();
+
+    assertTrue(IncrementalCheckout.fastForward(clone.getRepository(), target));
+    assertEquals(target, clone.getRepository().resolve(Constants.HEAD));
+    assertEquals("refs/heads/master", clone.getRepository().getFullBranch());
+    assertEquals("new", read("change.txt"));
+    assertEquals("added", read("dir/added/file.txt"));
+    assertFalse(new File(cloneDir, "delete.txt").exists());
+    assertFalse(new File(cloneDir, "dir/deleted").exists());
+    assertEquals(keepModified, new File(cloneDir, "keep.txt").lastModified());
+    assertTrue(clone.status().call().isClean());
+  }
+
+  @Test
+  public void checkLocalChangeOfChangedPathIsNotOverwritten() throws GitAPIException, IOException {
+    RevCommit target = commitChangesOnRemote();
+    ObjectId oldHead = clone.getRepository().resolve(Constants.HEAD);
+    write(cloneDir, "change.txt", "local");
+
+    assertFalse(IncrementalCheckout.fastForward(clone.getRepository(), target));
+    assertEquals(oldHead, clone.getRepository().resolve(Constants.HEAD));
+    assertEquals("local", read("change.txt"));
+    assertTrue(new File(cloneDir, "delete.txt").exists());
+  }
+
+  @Test
+  public void checkLocalChangeOfUnchangedPathIsKept() throws GitAPIException, IOException {
+    RevCommit target = commitChangesOnRemote();
+    write(cloneDir, "keep.txt", "local");
+
+    assertTrue(IncrementalCheckout.fastForward(clone.getRepository(), target));
+    assertEquals(target, clone.getRepository().resolve(Constants.HEAD));
+    assertEquals("local", read("keep.txt"));
+    assertEquals("new", read("change.txt"));
+  }
+
+  @Test
+  public void checkUntrackedFileInTheWayIsNotOverwritten() throws GitAPIException, IOException {
+    RevCommit target = commitChangesOnRemote();
+    write(cloneDir, "dir/added/file.txt", "untracked");
+
+    assertFalse(IncrementalCheckout.fastForward(clone.getRepository(), target));
+    assertEquals("untracked", read("dir/added/file.txt"));
+  }
+
+  @Test
+  public void checkFailedFastForwardRestoresOnlyChangedPaths() throws GitAPIException, IOException {
+    RevCommit target = commitChangesOnRemote();
+    ObjectId oldHead = clone.getRepository().resolve(Constants.HEAD);
+    write(cloneDir, "keep.txt", "local");
+    // an untracked file where the added directory goes fails the checkout
+    write(cloneDir, "dir/added", "untracked");
+
+    try {
+      IncrementalCheckout.fastForward(clone.getRepository(), target);
+      fail("Fast-forward succeeded although dir/added is in the way");
+    } catch (IOException e) {
+      // expected
+    }
+    assertEquals(oldHead, clone.getRepository().resolve(Constants.HEAD));
+    assertEquals("local", read("keep.txt"));
+    assertEquals("untracked", read("dir/added"));
+    assertEquals("old", read("change.txt"));
+    assertEquals("delete", read("delete.txt"));
+    assertEquals("deleted dir", read("dir/deleted/file.txt"));
+    assertEquals(Collections.singleton("keep.txt"), clone.status().call().getUncommittedChanges());
+  }
+
+  private RevCommit commitChangesOnRemote() throws GitAPIException, IOException {
+    write(remoteDir, "change.txt", "new");
+    write(remoteDir, "dir/added/file.txt", "added");
+    remote.add().addFilepattern(".").call();
+    remote.rm().addFilepattern("delete.txt").addFilepattern("dir/deleted/file.txt").call();
+    RevCommit commit = remote.commit().setMessage("second").call();
+    clone.fetch().call();
+    return commit;
+  }
+
+  private void write(File directory, String path, String content) throws IOException {
+    FileCommands.writeToFile(new File(directory, path), content);
+  }
+
+  private String read(String path) throws IOException {
+    return FileCommands.readFileAsString(new File(cloneDir, path));
+  }
+}
@@ -0,0 +1,49 @@
+package build.pluto.buildgit.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.sugarj.common.FileCommands;
+
+/**
+ * A repository in a local directory that tests clone from and commit to,
+ * so they do not depend on a network connection.
+ */
+public class LocalRemote {
+
+  public final File directory;
+  public final Git git;
+
+  public LocalRemote(File directory) throws GitAPIException {
+    this.directory = directory;
+    this.git = Git.init().setDirectory(directory).call();
+  }
+
+  public String url() {
+    return "file://" + directory.getAbsolutePath();
+  }
+
+  /**
+   * Writes content to path and commits it on the current branch.
+   */
+  public RevCommit commit(String path, String content) throws GitAPIException, IOException {
+    FileCommands.writeToFile(new File(directory, path), content);
+    git.add().addFilepattern(path).call();
+    return git.commit().setMessage("change " + path).call();
+  }
+
+  public void checkout(String branch, boolean create) throws GitAPIException {
+    git.checkout().setName(branch).setCreateBranch(create).call();
+  }
+
+  public void tag(String name) throws GitAPIException {
+    git.tag().setName(name).setMessage(name).call();
+  }
+
+  public void close() {
+    git.close();
+  }
+}
@@ -0,0 +1,84 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+public class LocalRepositoryStateTest {
+
+  private final File repoDir = new File("localstatetest");
+  private final String url = "file:///some/remote";
+  private RevCommit commit;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    Git git = Git.init().setDirectory(repoDir).call();
+    FileCommands.writeToFile(new File(repoDir, "file.txt"), "content");
+    git.add().addFilepattern("file.txt").call();
+    commit = git.commit().setMessage("initial").call();
+    StoredConfig config = git.getRepository().getConfig();
+    config.setString("remote", "origin", "url", url);
+    config.save();
+    git.close();
+  }
+
+  @After
+  public void destroy() {
+    try {
+      FileCommands.delete(repoDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkLooseRefs() {
+    LocalRepositoryState state = LocalRepositoryState.read(repoDir);
+    assertFalse(state.isEmpty());
+    assertEquals(commit.name(), state.getHeadHash());
+    assertTrue(state.isUrlSet(url));
+    assertFalse(state.isUrlSet("file:///other/remote"));
+  }
+
+  @Test
+  public void checkPackedRefs() throws IOException {
+    FileCommands.delete(new File(repoDir, ".git/refs/heads/master"));
+    FileCommands.writeToFile(new File(repoDir, ".git/packed-refs"), "# pack-refs with: peeled \n" + commit.name() + " refs/heads/master\n");
+    assertEquals(commit.name(), LocalRepositoryState.read(repoDir).getHeadHash());
+  }
+
+  @Test
+  public void checkDetachedHead() throws IOException {
+    FileCommands.writeToFile(new File(repoDir, ".git/HEAD"), commit.name() + "\n");
+    assertEquals(commit.name(), LocalRepositoryState.read(repoDir).getHeadHash());
+  }
+
+  @Test
+  public void checkNoRepository() throws IOException {
+    FileCommands.delete(new File(repoDir, ".git"));
+    LocalRepositoryState state = LocalRepositoryState.read(repoDir);
+    assertFalse(state.isEmpty());
+    assertNull(state.getHeadHash());
+    assertFalse(state.isUrlSet(url));
+  }
+
+  @Test
+  public void checkMissingDirectory() throws IOException {
+    FileCommands.delete(repoDir);
+    assertTrue(LocalRepositoryState.read(repoDir).isEmpty());
+  }
+}
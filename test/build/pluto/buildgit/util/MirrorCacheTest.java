@@ -0,0 +1,83 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitInput;
+
+public class MirrorCacheTest {
+
+  private final File baseDir = new File("mirrorcachetest");
+  private final File mirrorDir = new File(baseDir, "mirrors");
+  private LocalRemote remote;
+  private RevCommit head;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    remote = new LocalRemote(new File(baseDir, "remote"));
+    head = remote.commit("file.txt", "content");
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    RefAdvertisementCache.getInstance().invalidateAll();
+    try {
+      FileCommands.delete(baseDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkConcurrentUpdatesOfDifferentSpellings() throws InterruptedException, ExecutionException {
+    final File mirror = MirrorCache.mirrorOf(mirrorDir, remote.url());
+    final File otherSpelling = new File(new File(mirrorDir, "../" + mirrorDir.getName()), mirror.getName());
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Map<String, Ref>>> updates = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        final File spelling = i % 2 == 0 ? mirror : otherSpelling;
+        updates.add(executor.submit(new Callable<Map<String, Ref>>() {
+          @Override
+          public Map<String, Ref> call() throws Exception {
+            return MirrorCache.update(spelling, remote.url());
+          }
+        }));
+      }
+      for (Future<Map<String, Ref>> update : updates)
+        assertEquals(head, update.get().get("refs/heads/master").getObjectId());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void checkClonesShareTheMirror() throws Exception {
+    for (String name : new String[] { "clone1", "clone2" }) {
+      GitInput input = new GitInput.Builder(new File(baseDir, name), remote.url()).setMirrorDirectory(mirrorDir).build();
+      GitHandler.cloneRepository(input);
+      assertEquals(head.name(), GitHandler.getHashOfHEAD(input.directory));
+    }
+    assertEquals(1, mirrorDir.list().length);
+  }
+}
@@ -0,0 +1,92 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.GitRemoteSynchronizer;
+import build.pluto.buildgit.stamp.GitTreeStamper;
+import build.pluto.stamp.Stamper;
+import build.pluto.stamp.ValueStamp;
+
+public class PathFiltersTest {
+
+  private final File directory = new File("pathfilterstest");
+  private LocalRemote repo;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    repo = new LocalRemote(directory);
+    repo.commit("readme.txt", "readme");
+    repo.commit("src/main.txt", "main");
+    repo.commit("src/gen/generated.txt", "generated");
+    repo.commit("src/general.txt", "general");
+    repo.commit("doc/doc.txt", "doc");
+  }
+
+  @After
+  public void destroy() {
+    repo.close();
+    try {
+      FileCommands.delete(directory);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkExcludedFilesAreNotProvided() throws GitException {
+    GitInput input = new GitInput.Builder(directory, repo.url()).addIncludePath("src").addExcludePath("src/gen").build();
+    Map<File, Stamper> outputs = GitRemoteSynchronizer.outputsOf(input);
+    assertEquals(new HashSet<>(Arrays.asList(file("src/main.txt"), file("src/general.txt"))), outputs.keySet());
+  }
+
+  @Test
+  public void checkExcludedFilesAreNotProvidedWithoutIncludes() throws GitException {
+    GitInput input = new GitInput.Builder(directory, repo.url()).addExcludePath("src/gen").addExcludePath("doc").build();
+    Map<File, Stamper> outputs = GitRemoteSynchronizer.outputsOf(input);
+    assertEquals(new HashSet<>(Arrays.asList(file("readme.txt"), file("src/main.txt"), file("src/general.txt"))), outputs.keySet());
+  }
+
+  @Test
+  public void checkExcludedPathsAreNotStampedInTreeMode() throws GitException, GitAPIException, IOException {
+    GitInput input = new GitInput.Builder(directory, repo.url())
+        .setStampTree(true)
+        .addIncludePath("src")
+        .addIncludePath("doc")
+        .addExcludePath("src/gen")
+        .addExcludePath("doc")
+        .build();
+    Map<File, Stamper> outputs = GitRemoteSynchronizer.outputsOf(input);
+    assertEquals(new HashSet<>(Arrays.asList(file("src"))), outputs.keySet());
+    Stamper stamper = outputs.get(file("src"));
+    assertEquals(new GitTreeStamper(directory, Arrays.asList("src/gen", "doc")), stamper);
+    Object stamp = stampValue(stamper, file("src"));
+    repo.commit("src/gen/generated.txt", "regenerated");
+    assertEquals(stamp, stampValue(stamper, file("src")));
+    repo.commit("src/main.txt", "changed");
+    assertNotEquals(stamp, stampValue(stamper, file("src")));
+  }
+
+  private Object stampValue(Stamper stamper, File file) {
+    return ((ValueStamp<?>) stamper.stampOf(file)).val;
+  }
+
+  private File file(String path) {
+    return new File(directory, path);
+  }
+}
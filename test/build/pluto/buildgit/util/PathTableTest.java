@@ -0,0 +1,86 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+
+public class PathTableTest {
+
+  private final File directory = new File("pathtabletest");
+  private Git git;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    git = Git.init().setDirectory(directory).call();
+    write(".gitignore", "*.class\n");
+    write("a.txt", "a");
+    write("src/b.txt", "b");
+    write("src/main/c.txt", "c");
+    write("src/main/C.class", "c");
+    write("src/test/d.txt", "d");
+    write("untracked.txt", "untracked");
+    git.add().addFilepattern(".gitignore").addFilepattern("a.txt").addFilepattern("src").call();
+    git.commit().setMessage("first").call();
+  }
+
+  @After
+  public void destroy() {
+    git.close();
+    try {
+      FileCommands.delete(directory);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkPathsAreRestored() {
+    List<String> paths = Arrays.asList("a", "a/b/c", "a/b/d", "a/bb", "a/b/e", "x/b/c", "ä/ö.txt", "a/b/c");
+    PathTable table = new PathTable();
+    for (String path : paths)
+      table.add(path);
+    assertEquals(paths.size(), table.size());
+    for (int i = 0; i < paths.size(); i++)
+      assertEquals(paths.get(i), table.getPath(i));
+  }
+
+  @Test
+  public void checkVisitedFilesMatchListedFiles() throws GitException {
+    PathTable table = new PathTable();
+    GitHandler.visitNotIgnoredFilesOfRepo(directory, table);
+    List<File> visited = new ArrayList<>();
+    for (int i = 0; i < table.size(); i++)
+      visited.add(table.getFile(directory, i));
+    assertEquals(6, visited.size());
+    assertEquals(GitHandler.getNotIgnoredFilesOfRepo(directory), visited);
+  }
+
+  @Test
+  public void checkVisitedTrackedFilesMatchListedFiles() throws GitException {
+    // the first visit walks the index, the second reads the manifest
+    for (int round = 0; round < 2; round++) {
+      PathTable table = new PathTable();
+      GitHandler.visitTrackedFilesOfRepo(directory, false, Arrays.asList("src"), Arrays.asList("src/test"), table);
+      assertEquals(Arrays.asList("src/b.txt", "src/main/c.txt"), Arrays.asList(table.getPath(0), table.getPath(1)));
+      assertEquals(2, table.size());
+    }
+  }
+
+  private void write(String path, String content) throws IOException {
+    FileCommands.writeToFile(new File(directory, path), content);
+  }
+}
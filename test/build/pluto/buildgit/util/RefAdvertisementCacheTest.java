@@ -0,0 +1,174 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportProtocol;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+public class RefAdvertisementCacheTest {
+
+  private final File remoteDir = new File("refcacheremote");
+  private String url;
+  private Git remote;
+
+  @Before
+  public void init() throws GitAPIException {
+    remote = Git.init().setDirectory(remoteDir).call();
+    url = "file://" + remoteDir.getAbsolutePath();
+    commitOnRemote("first");
+  }
+
+  @After
+  public void destroy() {
+    remote.close();
+    try {
+      FileCommands.delete(remoteDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkDisabledCacheSeesNewCommits() throws GitAPIException {
+    RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+    String before = hashOfMaster(cache.getRefs(url));
+    RevCommit commit = commitOnRemote("second");
+    assertNotEquals(before, hashOfMaster(cache.getRefs(url)));
+    assertEquals(commit.getName(), hashOfMaster(cache.getRefs(url)));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void checkCachedAdvertisementIsReused() throws GitAPIException {
+    RefAdvertisementCache cache = new RefAdvertisementCache(60000, 10);
+    Map<String, Ref> refs = cache.getRefs(url);
+    commitOnRemote("second");
+    assertSame(refs, cache.getRefs(url));
+    cache.invalidate(url);
+    assertNotEquals(hashOfMaster(refs), hashOfMaster(cache.getRefs(url)));
+  }
+
+  @Test
+  public void checkLeastRecentlyUsedGetsEvicted() {
+    RefAdvertisementCache cache = new RefAdvertisementCache(60000, 2);
+    Map<String, Ref> first = cache.put("first", remote.getRepository().getAllRefs().values());
+    cache.put("second", remote.getRepository().getAllRefs().values());
+    try {
+      assertSame(first, cache.getRefs("first"));
+    } catch (GitAPIException e) {
+      fail("Cached advertisement was not used");
+    }
+    cache.put("third", remote.getRepository().getAllRefs().values());
+    assertEquals(2, cache.size());
+    try {
+      cache.getRefs("second");
+      fail("Evicted advertisement was used");
+    } catch (GitAPIException e) {
+      // second is no valid url, so it has to be fetched again
+    }
+  }
+
+  @Test
+  public void checkAsyncLookupsSeeRemote() throws GitAPIException {
+    RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+    Future<Map<String, Ref>> first = cache.getRefsAsync(url);
+    Future<Map<String, Ref>> second = cache.getRefsAsync(url);
+    String hash = hashOfMaster(cache.getRefs(url));
+    assertEquals(hash, hashOfMaster(RefAdvertisementCache.join(url, first)));
+    assertEquals(hash, hashOfMaster(RefAdvertisementCache.join(url, second)));
+  }
+
+  @Test(expected = GitAPIException.class)
+  public void checkAsyncLookupFailsForInvalidUrl() throws GitAPIException {
+    RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+    RefAdvertisementCache.join("invalid", cache.getRefsAsync("invalid"));
+  }
+
+  @Test(timeout = 60000)
+  public void checkLookupWithOtherPolicyDoesNotWaitForRunningLoad() throws GitAPIException {
+    final CountDownLatch release = new CountDownLatch(1);
+    TransportProtocol blocking = new TransportProtocol() {
+      @Override
+      public String getName() {
+        return "blocking";
+      }
+
+      @Override
+      public Set<String> getSchemes() {
+        return Collections.singleton("blocking");
+      }
+
+      @Override
+      public Transport open(URIish uri, Repository local, String remoteName) throws NotSupportedException, org.eclipse.jgit.errors.TransportException {
+        return open(uri);
+      }
+
+      @Override
+      public Transport open(URIish uri) throws NotSupportedException, org.eclipse.jgit.errors.TransportException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new org.eclipse.jgit.errors.TransportException(uri, "interrupted", e);
+        }
+        return Transport.open(uri.setScheme("file"));
+      }
+    };
+    Transport.register(blocking);
+    try {
+      RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+      String blockingUrl = "blocking://" + remoteDir.getAbsolutePath();
+      Future<Map<String, Ref>> first = cache.getRefsAsync(blockingUrl, new RemoteOperationPolicy.Builder().build());
+      assertSame(first, cache.getRefsAsync(blockingUrl, new RemoteOperationPolicy.Builder().build()));
+      Future<Map<String, Ref>> shortDeadline = cache.getRefsAsync(blockingUrl, new RemoteOperationPolicy.Builder().setDeadline(100).build());
+      assertNotSame(first, shortDeadline);
+      try {
+        RefAdvertisementCache.join(blockingUrl, shortDeadline);
+        fail("Lookup with a deadline of 100 ms waited for the running load");
+      } catch (GitAPIException e) {
+        // expected
+      }
+      release.countDown();
+      assertEquals(hashOfMaster(cache.getRefs(url)), hashOfMaster(RefAdvertisementCache.join(blockingUrl, first)));
+    } finally {
+      release.countDown();
+      Transport.unregister(blocking);
+    }
+  }
+
+  private String hashOfMaster(Map<String, Ref> refs) {
+    return refs.get("refs/heads/master").getObjectId().getName();
+  }
+
+  private RevCommit commitOnRemote(String content) throws GitAPIException {
+    try {
+      FileCommands.writeToFile(new File(remoteDir, "file.txt"), content);
+    } catch (IOException e) {
+      fail("Could not write file");
+    }
+    remote.add().addFilepattern("file.txt").call();
+    return remote.commit().setMessage(content).call();
+  }
+}
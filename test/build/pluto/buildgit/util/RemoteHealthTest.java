@@ -0,0 +1,228 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportProtocol;
+import org.eclipse.jgit.transport.URIish;
+import org.junit.After;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.bound.BranchBound;
+import build.pluto.buildgit.util.RemoteHealth.State;
+
+public class RemoteHealthTest {
+
+  private final String url = "https://example.org/repo.git";
+  private final File baseDir = new File("remotehealthtest");
+  private final RemoteOperationPolicy noRetries = new RemoteOperationPolicy.Builder().setAttempts(1).build();
+
+  @After
+  public void destroy() throws IOException {
+    RemoteHealth.getInstance().resetAll();
+    FileCommands.delete(baseDir);
+  }
+
+  @Test
+  public void checkOpensAfterThreshold() {
+    RemoteHealth health = new RemoteHealth(2, 60000);
+    health.recordFailure(url);
+    assertEquals(State.CLOSED, health.getState(url));
+    assertTrue(health.allowRequest(url));
+    health.recordFailure(url);
+    assertEquals(State.OPEN, health.getState(url));
+    assertFalse(health.allowRequest(url));
+    assertFalse(health.allowRequest("https://EXAMPLE.org/repo/"));
+  }
+
+  @Test
+  public void checkSuccessCloses() {
+    RemoteHealth health = new RemoteHealth(2, 60000);
+    health.recordFailure(url);
+    health.recordSuccess(url);
+    health.recordFailure(url);
+    assertEquals(State.CLOSED, health.getState(url));
+  }
+
+  @Test
+  public void checkHalfOpenAllowsOneProbe() throws InterruptedException {
+    RemoteHealth health = new RemoteHealth(1, 10);
+    health.recordFailure(url);
+    Thread.sleep(20);
+    assertEquals(State.HALF_OPEN, health.getState(url));
+    assertTrue(health.allowRequest(url));
+    assertFalse(health.allowRequest(url));
+    health.recordSuccess(url);
+    assertEquals(State.CLOSED, health.getState(url));
+    assertTrue(health.allowRequest(url));
+  }
+
+  @Test
+  public void checkFailedProbeReopens() throws InterruptedException {
+    RemoteHealth health = new RemoteHealth(1, 10);
+    health.recordFailure(url);
+    Thread.sleep(20);
+    assertTrue(health.allowRequest(url));
+    health.recordFailure(url);
+    assertEquals(State.OPEN, health.getState(url));
+    assertFalse(health.allowRequest(url));
+  }
+
+  @Test
+  public void checkOnlyConnectionFailuresCount() {
+    assertTrue(RemoteHealth.isConnectionFailure(new TransportException("failed",
+        new org.eclipse.jgit.errors.TransportException("failed", new ConnectException()))));
+    assertFalse(RemoteHealth.isConnectionFailure(new TransportException("failed",
+        new org.eclipse.jgit.errors.TransportException("Remote does not have refs/heads/x available for fetch."))));
+    assertFalse(RemoteHealth.isConnectionFailure(new TransportException("failed",
+        new NoRemoteRepositoryException(new URIish().setPath("repo"), "not found"))));
+  }
+
+  @Test
+  public void checkMissingRefDoesNotOpen() throws GitAPIException, IOException {
+    LocalRemote remote = new LocalRemote(new File(baseDir, "remote"));
+    remote.commit("file.txt", "content");
+    remote.close();
+    GitInput input = new GitInput.Builder(new File(baseDir, "clone"), remote.url())
+        .setBound(new BranchBound(remote.url(), "missing"))
+        .setFetchBoundOnly(true)
+        .setRemoteOperationPolicy(noRetries)
+        .build();
+    for (int i = 0; i < 3; i++) {
+      try {
+        GitHandler.cloneRepository(input);
+        fail("Missing branch was cloned");
+      } catch (GitException e) {
+        assertEquals(State.CLOSED, RemoteHealth.getInstance().getState(remote.url()));
+      }
+    }
+  }
+
+  @Test
+  public void checkMissingRepositoryDoesNotOpen() {
+    String missing = "file://" + new File(baseDir, "missing").getAbsolutePath();
+    for (int i = 0; i < 3; i++) {
+      try {
+        new RefAdvertisementCache(0, 10).getRefs(missing, noRetries);
+        fail("Missing repository was accessible");
+      } catch (GitAPIException e) {
+        assertEquals(State.CLOSED, RemoteHealth.getInstance().getState(missing));
+      }
+    }
+  }
+
+  @Test
+  public void checkRefusedConnectionOpens() {
+    String refused = "git://127.0.0.1:1/repo";
+    for (int i = 0; i < 2; i++) {
+      try {
+        new RefAdvertisementCache(0, 10).getRefs(refused, noRetries);
+        fail("Refused connection was accessible");
+      } catch (GitAPIException e) {
+        // expected
+      }
+    }
+    assertEquals(State.OPEN, RemoteHealth.getInstance().getState(refused));
+  }
+
+  @Test
+  public void checkDroppedFetchOpens() throws GitAPIException, IOException {
+    LocalRemote remote = new LocalRemote(new File(baseDir, "remote"));
+    remote.commit("file.txt", "1");
+    File cloneDir = new File(baseDir, "clone");
+    Git.cloneRepository().setURI(remote.url()).setDirectory(cloneDir).call().close();
+    remote.commit("file.txt", "2");
+    remote.close();
+    String dropping = "dropping://" + remote.directory.getAbsolutePath();
+    DroppingProtocol protocol = new DroppingProtocol();
+    Transport.register(protocol);
+    try {
+      for (int i = 0; i < 2; i++) {
+        try (GitRemoteSession session = GitRemoteSession.open(cloneDir, dropping)) {
+          session.fetch(Collections.singletonList(new RefSpec("+refs/heads/*:refs/remotes/origin/*")));
+          fail("Fetch succeeded although the connection dropped");
+        } catch (GitException e) {
+          // expected
+        }
+      }
+    } finally {
+      Transport.unregister(protocol);
+    }
+    assertEquals(State.OPEN, RemoteHealth.getInstance().getState(dropping));
+  }
+
+  /**
+   * Transport for dropping:// urls of local repositories, whose connections
+   * advertise the refs and then drop as soon as objects are fetched.
+   */
+  private static class DroppingProtocol extends TransportProtocol {
+    @Override
+    public String getName() {
+      return "dropping";
+    }
+
+    @Override
+    public Set<String> getSchemes() {
+      return Collections.singleton("dropping");
+    }
+
+    @Override
+    public Transport open(final URIish uri, Repository local, String remoteName) throws NotSupportedException, org.eclipse.jgit.errors.TransportException {
+      final Transport transport = Transport.open(local, uri.setScheme("file"));
+      return new Transport(local, uri) {
+        @Override
+        public FetchConnection openFetch() throws NotSupportedException, org.eclipse.jgit.errors.TransportException {
+          final FetchConnection connection = transport.openFetch();
+          return (FetchConnection) Proxy.newProxyInstance(FetchConnection.class.getClassLoader(), new Class<?>[] { FetchConnection.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+              if (method.getName().equals("fetch"))
+                throw new org.eclipse.jgit.errors.TransportException(uri, "connection reset", new SocketException("Connection reset"));
+              try {
+                return method.invoke(connection, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+            }
+          });
+        }
+
+        @Override
+        public PushConnection openPush() throws NotSupportedException {
+          throw new NotSupportedException("Push is not supported");
+        }
+
+        @Override
+        public void close() {
+          transport.close();
+        }
+      };
+    }
+  }
+}
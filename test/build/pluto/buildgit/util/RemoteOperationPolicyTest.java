@@ -0,0 +1,270 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.api.errors.InvalidRemoteException;
+import org.eclipse.jgit.api.errors.TransportException;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.transport.Daemon;
+import org.eclipse.jgit.transport.DaemonClient;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.resolver.FileResolver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+import build.pluto.buildgit.GitInput;
+import build.pluto.buildgit.util.RemoteOperationPolicy.Attempt;
+
+public class RemoteOperationPolicyTest {
+
+  private final File baseDir = new File("policytest");
+  private Daemon daemon;
+  private StallingProxy proxy;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    File remoteDir = new File(baseDir, "remote");
+    Git remote = Git.init().setDirectory(remoteDir).call();
+    FileCommands.writeToFile(new File(remoteDir, "file.txt"), "content");
+    remote.add().addFilepattern("file.txt").call();
+    remote.commit().setMessage("first").call();
+    remote.close();
+
+    daemon = new Daemon(new InetSocketAddress("127.0.0.1", 0));
+    daemon.setRepositoryResolver(new FileResolver<DaemonClient>(baseDir.getAbsoluteFile(), true));
+    daemon.start();
+  }
+
+  @After
+  public void destroy() throws IOException {
+    if (proxy != null)
+      proxy.close();
+    daemon.stop();
+    RemoteHealth.getInstance().resetAll();
+    FileCommands.delete(baseDir);
+  }
+
+  @Test
+  public void checkFailedAttemptsAreRetried() throws IOException {
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setAttempts(3).setBackoff(1, 2).build();
+    final AtomicInteger attempts = new AtomicInteger();
+    String result = policy.execute("url", new Attempt<String, IOException>() {
+      @Override
+      public String run(CancelableProgressMonitor monitor, int timeout) throws IOException {
+        if (attempts.incrementAndGet() < 3)
+          throw new IOException("failed");
+        return "done";
+      }
+    });
+    assertEquals("done", result);
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void checkInvalidRemoteIsNotRetried() {
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setAttempts(3).setBackoff(1, 2).build();
+    final AtomicInteger attempts = new AtomicInteger();
+    try {
+      policy.execute("url", new Attempt<String, GitAPIException>() {
+        @Override
+        public String run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+          attempts.incrementAndGet();
+          throw new InvalidRemoteException("invalid");
+        }
+      });
+      fail("Invalid remote was accessible");
+    } catch (GitAPIException e) {
+      assertEquals(1, attempts.get());
+    }
+  }
+
+  @Test
+  public void checkOnlyTransientFailuresAreRetryable() {
+    assertTrue(RemoteOperationPolicy.isRetryable(new TransportException("failed",
+        new org.eclipse.jgit.errors.TransportException("failed", new SocketTimeoutException()))));
+    assertTrue(RemoteOperationPolicy.isRetryable(new SocketTimeoutException()));
+    assertFalse(RemoteOperationPolicy.isRetryable(new TransportException("failed",
+        new org.eclipse.jgit.errors.TransportException("Remote does not have refs/heads/x available for fetch."))));
+    assertFalse(RemoteOperationPolicy.isRetryable(new IllegalStateException("failed")));
+  }
+
+  @Test
+  public void checkMissingRefIsNotRetried() throws GitAPIException, IOException {
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setAttempts(3).setBackoff(1, 2).build();
+    final File cloneDir = new File(baseDir, "clone");
+    final String url = "file://" + new File(baseDir, "remote").getAbsolutePath();
+    Git.cloneRepository().setURI(url).setDirectory(cloneDir).call().close();
+    final AtomicInteger attempts = new AtomicInteger();
+    try {
+      policy.execute(url, new Attempt<Object, GitAPIException>() {
+        @Override
+        public Object run(CancelableProgressMonitor monitor, int timeout) throws GitAPIException {
+          attempts.incrementAndGet();
+          try (Git git = Git.open(cloneDir)) {
+            return git.fetch().setRefSpecs(new RefSpec("refs/heads/missing:refs/remotes/origin/missing")).call();
+          } catch (IOException e) {
+            throw new AssertionError(e);
+          }
+        }
+      });
+      fail("Missing ref was fetched");
+    } catch (GitAPIException e) {
+      assertEquals(1, attempts.get());
+    }
+  }
+
+  @Test
+  public void checkFailedCloneIsRetried() throws GitException {
+    FlakyProtocol flaky = new FlakyProtocol(1);
+    Transport.register(flaky);
+    try {
+      RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setAttempts(2).setBackoff(1, 2).build();
+      File cloneDir = new File(baseDir, "clone");
+      String url = FlakyProtocol.url(new File(baseDir, "remote"));
+      GitHandler.cloneRepository(new GitInput.Builder(cloneDir, url).setRemoteOperationPolicy(policy).build());
+      assertEquals(2, flaky.connections.get());
+      assertTrue(new File(cloneDir, "file.txt").exists());
+    } finally {
+      Transport.unregister(flaky);
+    }
+  }
+
+  @Test
+  public void checkStalledRemoteTimesOut() throws IOException {
+    proxy = new StallingProxy(daemon.getAddress().getPort(), Integer.MAX_VALUE);
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setTimeout(1).setAttempts(2).setBackoff(1, 2).build();
+    long start = System.currentTimeMillis();
+    try {
+      RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+      cache.getRefs(proxy.url("http", "remote"), policy);
+      fail("Stalled remote answered");
+    } catch (GitAPIException e) {
+      assertEquals(2, proxy.connections.get());
+      assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+  }
+
+  @Test
+  public void checkStalledRemoteIsAbandonedAtDeadline() throws IOException {
+    proxy = new StallingProxy(daemon.getAddress().getPort(), Integer.MAX_VALUE);
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setTimeout(0).setDeadline(500).build();
+    long start = System.currentTimeMillis();
+    try {
+      RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+      cache.getRefs(proxy.url("git", "remote"), policy);
+      fail("Stalled remote answered");
+    } catch (GitAPIException e) {
+      assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+  }
+
+  @Test
+  public void checkHedgedLsRemoteBypassesStalledConnection() throws IOException, GitAPIException {
+    proxy = new StallingProxy(daemon.getAddress().getPort(), 1);
+    RemoteOperationPolicy policy = new RemoteOperationPolicy.Builder().setTimeout(30).setAttempts(1).setHedgeDelay(200).build();
+    long start = System.currentTimeMillis();
+    RefAdvertisementCache cache = new RefAdvertisementCache(0, 10);
+    Collection<Ref> refs = cache.getRefs(proxy.url("git", "remote"), policy).values();
+    assertTrue(!refs.isEmpty());
+    assertEquals(2, proxy.connections.get());
+    assertTrue(System.currentTimeMillis() - start < 10000);
+  }
+
+  /**
+   * Forwards connections to a local port, except for the first stalled ones,
+   * which are accepted but never answered.
+   */
+  private static class StallingProxy implements Runnable {
+    private final ServerSocket server;
+    private final int targetPort;
+    private final int stalled;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    private StallingProxy(int targetPort, int stalled) throws IOException {
+      this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      this.targetPort = targetPort;
+      this.stalled = stalled;
+      Thread thread = new Thread(this, "stalling-proxy");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private String url(String scheme, String repository) {
+      return scheme + "://127.0.0.1:" + server.getLocalPort() + "/" + repository;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Socket client = server.accept();
+          synchronized (sockets) {
+            sockets.add(client);
+          }
+          if (connections.incrementAndGet() <= stalled)
+            continue;
+          Socket target = new Socket("127.0.0.1", targetPort);
+          synchronized (sockets) {
+            sockets.add(target);
+          }
+          pipe(client.getInputStream(), target.getOutputStream());
+          pipe(target.getInputStream(), client.getOutputStream());
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    private void pipe(final InputStream in, final OutputStream out) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          byte[] buffer = new byte[8192];
+          try {
+            for (int n; (n = in.read(buffer)) >= 0;) {
+              out.write(buffer, 0, n);
+              out.flush();
+            }
+            out.close();
+          } catch (IOException e) {
+            // closed
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void close() throws IOException {
+      server.close();
+      synchronized (sockets) {
+        for (Socket socket : sockets)
+          socket.close();
+      }
+    }
+  }
+}
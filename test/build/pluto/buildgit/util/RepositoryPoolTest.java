@@ -0,0 +1,81 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+public class RepositoryPoolTest {
+
+  private final File firstDir = new File("pooltest1");
+  private final File secondDir = new File("pooltest2");
+  private RepositoryPool pool;
+
+  @Before
+  public void init() throws GitAPIException {
+    Git.init().setDirectory(firstDir).call().close();
+    Git.init().setDirectory(secondDir).call().close();
+    pool = new RepositoryPool(1);
+  }
+
+  @After
+  public void destroy() {
+    pool.closeAll();
+    try {
+      FileCommands.delete(firstDir);
+      FileCommands.delete(secondDir);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test
+  public void checkRepositoryIsShared() throws IOException {
+    Repository first = pool.acquire(firstDir);
+    Repository second = pool.acquire(new File(firstDir, "../" + firstDir.getName()));
+    assertSame(first, second);
+    pool.release(first);
+    pool.release(second);
+    assertSame(first, pool.acquire(firstDir));
+  }
+
+  @Test
+  public void checkIdleRepositoryGetsEvicted() throws IOException {
+    Repository first = pool.acquire(firstDir);
+    pool.release(first);
+    Repository second = pool.acquire(secondDir);
+    assertEquals(1, pool.size());
+    pool.release(second);
+    assertNotSame(first, pool.acquire(firstDir));
+  }
+
+  @Test
+  public void checkRepositoryInUseIsNotEvicted() throws IOException {
+    Repository first = pool.acquire(firstDir);
+    Repository second = pool.acquire(secondDir);
+    assertEquals(2, pool.size());
+    pool.release(second);
+    assertEquals(1, pool.size());
+    assertSame(first, pool.acquire(firstDir));
+  }
+
+  @Test
+  public void checkRecreatedRepositoryGetsReopened() throws IOException, GitAPIException {
+    Repository first = pool.acquire(firstDir);
+    pool.release(first);
+    FileCommands.delete(firstDir);
+    Git.init().setDirectory(firstDir).call().close();
+    assertNotSame(first, pool.acquire(firstDir));
+  }
+}
@@ -0,0 +1,150 @@
+package build.pluto.buildgit.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.transport.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sugarj.common.FileCommands;
+
+import build.pluto.buildgit.GitException;
+
+public class SubmoduleUpdaterTest {
+
+  private final File root = new File("submoduleupdatertest");
+  private final File cloneDir = new File(root, "clone");
+  private LocalRemote a;
+  private LocalRemote b;
+  private LocalRemote c;
+  private LocalRemote superproject;
+
+  @Before
+  public void init() throws GitAPIException, IOException {
+    a = new LocalRemote(new File(root, "a"));
+    a.commit("a.txt", "a");
+    c = new LocalRemote(new File(root, "c"));
+    c.commit("c.txt", "c");
+    b = new LocalRemote(new File(root, "b"));
+    b.commit("b.txt", "b");
+    addSubmodule(b, "c", c);
+    superproject = new LocalRemote(new File(root, "super"));
+    superproject.commit("README.md", "super");
+    addSubmodule(superproject, "a", a);
+    addSubmodule(superproject, "b", b);
+    Git.cloneRepository().setURI(superproject.url()).setDirectory(cloneDir).call().close();
+  }
+
+  @After
+  public void destroy() {
+    a.close();
+    b.close();
+    c.close();
+    superproject.close();
+    try {
+      FileCommands.delete(root);
+    } catch (IOException e) {
+      fail("Could not delete temporary directory");
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void checkSubmodulesAreClonedInParallelAndRecursively() throws GitException, IOException {
+    int freeThreads = SubmoduleUpdater.freeThreads();
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      SubmoduleUpdater.update(repo, null);
+    }
+    assertTrue(new File(cloneDir, "a/a.txt").exists());
+    assertTrue(new File(cloneDir, "b/b.txt").exists());
+    assertTrue(new File(cloneDir, "b/c/c.txt").exists());
+    assertEquals(freeThreads, SubmoduleUpdater.freeThreads());
+  }
+
+  @Test(timeout = 60000)
+  public void checkTrackedFilesOfSubmodulesAreListed() throws GitException, IOException {
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      SubmoduleUpdater.update(repo, null);
+    }
+    List<File> files = GitHandler.getTrackedFilesOfRepo(cloneDir, false);
+    assertTrue(files.contains(new File(cloneDir, "a/a.txt")));
+    assertTrue(files.contains(new File(cloneDir, "b/c/c.txt")));
+    // listed again from the manifests of the repositories
+    assertEquals(files, GitHandler.getTrackedFilesOfRepo(cloneDir, false));
+  }
+
+  @Test(timeout = 60000)
+  public void checkChangedSubmoduleIsUpdated() throws GitException, GitAPIException, IOException {
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      SubmoduleUpdater.update(repo, null);
+    }
+    a.commit("a2.txt", "a2");
+    try (Git submodule = Git.open(new File(superproject.directory, "a"))) {
+      submodule.pull().call();
+    }
+    superproject.git.add().addFilepattern("a").call();
+    superproject.git.commit().setMessage("update a").call();
+
+    try (Git clone = Git.open(cloneDir)) {
+      ObjectId oldHead = clone.getRepository().resolve("HEAD");
+      clone.pull().call();
+      SubmoduleUpdater.update(clone.getRepository(), oldHead);
+    }
+    assertTrue(new File(cloneDir, "a/a2.txt").exists());
+    assertTrue(new File(cloneDir, "b/c/c.txt").exists());
+  }
+
+  @Test(timeout = 60000)
+  public void checkPathsInsideSubmodulesRestrictTheirFiles() throws GitException, IOException {
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      SubmoduleUpdater.update(repo, null);
+    }
+    // listed again from the manifests of the repositories
+    for (int i = 0; i < 2; i++) {
+      assertEquals(Arrays.asList(new File(cloneDir, "a/a.txt"), new File(cloneDir, "b/.gitmodules"), new File(cloneDir, "b/b.txt")),
+          GitHandler.getTrackedFilesOfRepo(cloneDir, false, Arrays.asList("a", "b"), Arrays.asList("b/c")));
+      assertEquals(Arrays.asList(new File(cloneDir, "b/c/c.txt")),
+          GitHandler.getTrackedFilesOfRepo(cloneDir, false, Arrays.asList("b/c/c.txt"), Collections.<String>emptyList()));
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void checkSubmodulesAreClonedWithPolicy() throws GitException, IOException {
+    // fails the only attempt of the first and the first attempt of the second update
+    FlakyProtocol flaky = new FlakyProtocol(2);
+    Transport.register(flaky);
+    try (Repository repo = Git.open(cloneDir).getRepository()) {
+      StoredConfig config = repo.getConfig();
+      config.setString("submodule", "a", "url", FlakyProtocol.url(a.directory));
+      config.save();
+      try {
+        SubmoduleUpdater.update(repo, null, new RemoteOperationPolicy.Builder().setAttempts(1).build());
+        fail("Submodule was cloned although the connection was reset");
+      } catch (GitException e) {
+        // expected
+      }
+      SubmoduleUpdater.update(repo, null, new RemoteOperationPolicy.Builder().setAttempts(2).setBackoff(1, 2).build());
+      assertEquals(3, flaky.connections.get());
+      assertTrue(new File(cloneDir, "a/a.txt").exists());
+    } finally {
+      Transport.unregister(flaky);
+    }
+  }
+
+  private static void addSubmodule(LocalRemote repo, String path, LocalRemote submodule) throws GitAPIException {
+    repo.git.submoduleAdd().setPath(path).setURI(submodule.url()).call().close();
+    repo.git.commit().setMessage("add " + path).call();
+  }
+}